@@ -1,6 +1,6 @@
 /*
  * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
- * Copyright (C) 2013, 2014, 2015, 2016, 2017, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2013, 2014, 2015, 2016, 2017, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -178,6 +178,17 @@ public class Dia extends Element<com.semanticcms.dia.model.Dia> {
     return this;
   }
 
+  private Boolean svg;
+
+  /**
+   * Writes this diagram as a single SVG export instead of PNG exports in each pixel density.
+   * When not set, uses the {@linkplain DiaImpl#SVG_INIT_PARAM context default}.
+   */
+  public Dia svg(boolean svg) {
+    this.svg = svg;
+    return this;
+  }
+
   private BufferResult writeMe;
 
   @Override
@@ -195,7 +206,8 @@ public class Dia extends Element<com.semanticcms.dia.model.Dia> {
           request,
           response,
           (capturedOut == null) ? null : new DocumentEE(servletContext, request, response, capturedOut),
-          element
+          element,
+          svg
       );
     } finally {
       if (capturedOut != null) {
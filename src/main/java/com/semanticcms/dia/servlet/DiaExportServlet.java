@@ -1,6 +1,6 @@
 /*
  * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
- * Copyright (C) 2013, 2014, 2015, 2016, 2017, 2018, 2019, 2020, 2021, 2022, 2025  AO Industries, Inc.
+ * Copyright (C) 2013, 2014, 2015, 2016, 2017, 2018, 2019, 2020, 2021, 2022, 2025, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -24,7 +24,6 @@
 package com.semanticcms.dia.servlet;
 
 import com.aoapps.lang.io.ContentType;
-import com.aoapps.lang.io.FileUtils;
 import com.aoapps.servlet.attribute.ScopeEE;
 import com.semanticcms.core.model.Book;
 import com.semanticcms.core.model.PageRef;
@@ -32,9 +31,20 @@ import com.semanticcms.core.servlet.SemanticCMS;
 import com.semanticcms.dia.model.Dia;
 import com.semanticcms.dia.servlet.impl.DiaExport;
 import com.semanticcms.dia.servlet.impl.DiaImpl;
+import com.semanticcms.dia.servlet.impl.ExportRejectedException;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -49,31 +59,230 @@ public class DiaExportServlet extends HttpServlet {
   public static final String SERVLET_PATH = "/semanticcms-dia-servlet/dia-export";
 
   /**
-   * Gets the dia export or null when not found.
+   * The number of seconds clients are asked to wait when an export is rejected.
    */
-  private DiaExport getThumbnail(HttpServletRequest request) throws IOException, ServletException {
-    // pathInfo must be present
+  private static final int RETRY_AFTER_SECONDS = 10;
+
+  /**
+   * The maximum number of exports to remember metadata for conditional requests.
+   */
+  private static final int MAX_METADATA = 10000;
+
+  /**
+   * The request key used to resolve the export only once per request.
+   */
+  private static final ScopeEE.Request.Attribute<Optional<ExportMetadata>> EXPORT_REQUEST_ATTRIBUTE =
+      ScopeEE.REQUEST.attribute(DiaExportServlet.class.getName() + ".export");
+
+  /**
+   * The metadata of a resolved export, sufficient to answer conditional requests.
+   */
+  private static final class ExportMetadata {
+
+    private final DiaExport export;
+    private final File diaFile;
+    private final long diaLastModified;
+    private final long lastModified;
+    private final long length;
+
+    private ExportMetadata(DiaExport export, File diaFile) {
+      this.export = export;
+      this.diaFile = diaFile;
+      this.diaLastModified = diaFile.lastModified();
+      File tmpFile = export.getTmpFile();
+      this.lastModified = tmpFile.lastModified();
+      this.length = tmpFile.length();
+    }
+
+    /**
+     * Checks if the diagram is unchanged and the export still exists since this metadata was recorded.
+     */
+    private boolean isFresh() {
+      return diaFile.lastModified() == diaLastModified && export.getTmpFile().lastModified() == lastModified;
+    }
+
+    /**
+     * Gets the strong entity tag for the export or its gzip variant.
+     */
+    private String getETag(boolean gzip) {
+      return '"' + Long.toString(lastModified, 36) + '-' + Long.toString(length, 36) + (gzip ? "-gzip\"" : "\"");
+    }
+  }
+
+  /**
+   * Metadata of recently resolved exports by path info, used to answer conditional requests without resolving the
+   * export.
+   */
+  private transient Map<String, ExportMetadata> metadataCache;
+
+  @Override
+  public void init() throws ServletException {
+    metadataCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, ExportMetadata>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, ExportMetadata> eldest) {
+            return size() > MAX_METADATA;
+          }
+        }
+    );
+  }
+
+  /**
+   * Checks if the request is for a {@linkplain DiaImpl#AUTO_DENSITY_SUFFIX density-neutral URL}.
+   */
+  private static boolean isAutoDensity(String pathInfo) {
+    return pathInfo != null && pathInfo.endsWith(DiaImpl.AUTO_DENSITY_SUFFIX + DiaImpl.PNG_EXTENSION);
+  }
+
+  /**
+   * Gets the device pixel ratio from the Client Hints of the request, defaulting to {@code 1} when not provided.
+   *
+   * @param  width  the width at the lowest pixel density, used with the {@code Width} hints, or {@code null} when not
+   *                provided
+   */
+  private static double getDevicePixelRatio(HttpServletRequest request, Integer width) {
+    for (String header : DiaImpl.CLIENT_HINTS_HEADERS) {
+      String value = request.getHeader(header);
+      if (value != null) {
+        try {
+          double hint = Double.parseDouble(value.trim());
+          if (hint > 0 && !Double.isInfinite(hint)) {
+            if (header.endsWith("DPR")) {
+              return hint;
+            } else if (width != null) {
+              return hint / width;
+            }
+          }
+        } catch (NumberFormatException e) {
+          // Ignore invalid hint
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Gets the path info of the export for the request, choosing the pixel density of a
+   * {@linkplain DiaImpl#AUTO_DENSITY_SUFFIX density-neutral URL} from its Client Hints.
+   *
+   * @return  the path info or {@code null} when not a valid density-neutral URL
+   */
+  private static String getExportPathInfo(HttpServletRequest request) {
     String pathInfo = request.getPathInfo();
+    if (!isAutoDensity(pathInfo)) {
+      return pathInfo;
+    }
+    String sizePath = pathInfo.substring(
+        0,
+        pathInfo.length() - DiaImpl.AUTO_DENSITY_SUFFIX.length() - DiaImpl.PNG_EXTENSION.length()
+    );
+    int dimSepPos = sizePath.lastIndexOf(DiaImpl.DIMENSION_SEPARATOR);
+    if (dimSepPos == -1) {
+      return null;
+    }
+    int sizeSepPos = sizePath.lastIndexOf(DiaImpl.SIZE_SEPARATOR, dimSepPos - 1);
+    if (sizeSepPos == -1) {
+      return null;
+    }
+    Integer width;
+    Integer height;
+    try {
+      width = parseSize(sizePath.substring(sizeSepPos + 1, dimSepPos));
+      height = parseSize(sizePath.substring(dimSepPos + 1));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    int pixelDensity = DiaImpl.limitPixelDensity(
+        width == null ? 0 : width,
+        height == null ? 0 : height,
+        DiaImpl.getPixelDensity(getDevicePixelRatio(request, width))
+    );
+    return sizePath.substring(0, sizeSepPos + 1)
+        + (width == null ? String.valueOf(DiaImpl.EMPTY_SIZE) : Integer.toString(width * pixelDensity))
+        + DiaImpl.DIMENSION_SEPARATOR
+        + (height == null ? String.valueOf(DiaImpl.EMPTY_SIZE) : Integer.toString(height * pixelDensity))
+        + DiaImpl.PNG_EXTENSION;
+  }
+
+  /**
+   * Parses one dimension of a size.
+   *
+   * @return  the dimension or {@code null} for {@link DiaImpl#EMPTY_SIZE}
+   *
+   * @throws  NumberFormatException  when not a positive number up to {@link DiaImpl#MAX_EXPORT_SIZE}
+   */
+  private static Integer parseSize(String size) throws NumberFormatException {
+    if (size.length() == 1 && size.charAt(0) == DiaImpl.EMPTY_SIZE) {
+      return null;
+    }
+    int value = Integer.parseInt(size);
+    if (value <= 0 || value > DiaImpl.MAX_EXPORT_SIZE) {
+      throw new NumberFormatException("Size must be positive and at most " + DiaImpl.MAX_EXPORT_SIZE + ": " + value);
+    }
+    return value;
+  }
+
+  /**
+   * Gets the dia export or null when not found.  The export is resolved only once per request.
+   */
+  private ExportMetadata getThumbnail(HttpServletRequest request) throws IOException, ServletException {
+    Optional<ExportMetadata> resolved = EXPORT_REQUEST_ATTRIBUTE.context(request).get();
+    if (resolved == null) {
+      resolved = Optional.ofNullable(resolveThumbnail(getExportPathInfo(request)));
+      EXPORT_REQUEST_ATTRIBUTE.context(request).set(resolved);
+    }
+    return resolved.orElse(null);
+  }
+
+  /**
+   * Gets the metadata for a conditional request, from recently resolved exports when the diagram is unchanged.
+   * Otherwise, resolves the export.
+   */
+  private ExportMetadata getConditionalMetadata(HttpServletRequest request) throws IOException, ServletException {
+    String pathInfo = getExportPathInfo(request);
+    if (pathInfo != null) {
+      ExportMetadata metadata = metadataCache.get(pathInfo);
+      if (metadata != null && metadata.isFresh()) {
+        return metadata;
+      }
+    }
+    return getThumbnail(request);
+  }
+
+  /**
+   * Resolves the dia export or null when not found.
+   *
+   * @param  pathInfo  the path info of the export, after choosing any pixel density from Client Hints
+   */
+  private ExportMetadata resolveThumbnail(String pathInfo) throws IOException, ServletException {
+    // pathInfo must be present
     if (pathInfo == null) {
       return null;
     }
     // Must end in expected extension
-    if (!pathInfo.endsWith(DiaImpl.PNG_EXTENSION)) {
+    String extension;
+    if (pathInfo.endsWith(DiaImpl.PNG_EXTENSION)) {
+      extension = DiaImpl.PNG_EXTENSION;
+    } else if (pathInfo.endsWith(DiaImpl.SVG_EXTENSION)) {
+      extension = DiaImpl.SVG_EXTENSION;
+    } else {
       return null;
     }
     // Find height
-    int dimSepPos = pathInfo.lastIndexOf(DiaImpl.DIMENSION_SEPARATOR, pathInfo.length() - DiaImpl.PNG_EXTENSION.length() - 1);
+    int dimSepPos = pathInfo.lastIndexOf(DiaImpl.DIMENSION_SEPARATOR, pathInfo.length() - extension.length() - 1);
     if (dimSepPos == -1) {
       return null;
     }
-    String heightStr = pathInfo.substring(dimSepPos + 1, pathInfo.length() - DiaImpl.PNG_EXTENSION.length());
+    String heightStr = pathInfo.substring(dimSepPos + 1, pathInfo.length() - extension.length());
     // log("heightStr=" +heightStr);
     Integer height;
     if (heightStr.length() == 1 && heightStr.charAt(0) == DiaImpl.EMPTY_SIZE) {
       height = null;
     } else {
       try {
-        height = Integer.parseInt(heightStr);
+        height = parseSize(heightStr);
       } catch (NumberFormatException e) {
         return null;
       }
@@ -91,14 +300,19 @@ public class DiaExportServlet extends HttpServlet {
       width = null;
     } else {
       try {
-        width = Integer.parseInt(widthStr);
+        width = parseSize(widthStr);
       } catch (NumberFormatException e) {
         return null;
       }
     }
     // log("width=" +width);
-    // Must have at least width or height to continue
-    if (width == null && height == null) {
+    if (DiaImpl.SVG_EXTENSION.equals(extension)) {
+      // SVG is only exported once, without any size
+      if (width != null || height != null) {
+        return null;
+      }
+    } else if (width == null && height == null) {
+      // Must have at least width or height to continue
       return null;
     }
     // Find book and path
@@ -117,12 +331,20 @@ public class DiaExportServlet extends HttpServlet {
 
     // Get the thumbnail image
     try {
-      return DiaImpl.exportDiagram(
+      DiaExport export = DiaImpl.exportOrStale(
+          getServletContext(),
           pageRef,
           width,
           height,
-          ScopeEE.Application.TEMPDIR.context(getServletContext()).get()
+          extension,
+          DiaImpl.getExportStore(getServletContext())
       );
+      ExportMetadata metadata = new ExportMetadata(export, pageRef.getResourceFile(true, true));
+      // A stale export is only served until re-exported, so is not remembered
+      if (!export.isStale()) {
+        metadataCache.put(pathInfo, metadata);
+      }
+      return metadata;
     } catch (InterruptedException e) {
       // Restore the interrupted status
       Thread.currentThread().interrupt();
@@ -132,37 +354,289 @@ public class DiaExportServlet extends HttpServlet {
     }
   }
 
+  /**
+   * Checks if the client accepts gzip content encoding.
+   */
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    Enumeration<String> acceptEncodings = request.getHeaders("Accept-Encoding");
+    while (acceptEncodings.hasMoreElements()) {
+      for (String coding : acceptEncodings.nextElement().split(",")) {
+        int semicolon = coding.indexOf(';');
+        String name = (semicolon == -1 ? coding : coding.substring(0, semicolon)).trim();
+        if ("gzip".equalsIgnoreCase(name)) {
+          // Not accepted when q=0
+          return semicolon == -1 || !coding.substring(semicolon + 1).trim().matches("[qQ]\\s*=\\s*0(\\.0*)?");
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if any entity tag in an {@code If-None-Match} header matches, using weak comparison.
+   */
+  private static boolean isNoneMatchMatched(String ifNoneMatch, String etag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if ("*".equals(tag)) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if the gzip variant will be sent for the given export.
+   */
+  private static boolean isGzip(HttpServletRequest request, ExportMetadata metadata) {
+    return metadata.export.getTmpFile().getName().endsWith(DiaImpl.SVG_EXTENSION) && acceptsGzip(request);
+  }
+
+  /**
+   * Answers {@code If-None-Match} from export metadata, without resolving the export when the diagram is unchanged.
+   */
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    if (isAutoDensity(request.getPathInfo())) {
+      // The export varies by Client Hints, which are requested for following requests
+      String hints = String.join(", ", DiaImpl.CLIENT_HINTS_HEADERS);
+      response.setHeader("Accept-CH", hints);
+      response.addHeader("Vary", hints);
+    }
+    try {
+      serviceConditional(request, response);
+    } catch (ExportRejectedException e) {
+      // Too many exports, fail fast
+      response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
+
+  private void serviceConditional(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    String method = request.getMethod();
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null && ("GET".equals(method) || "HEAD".equals(method))) {
+      ExportMetadata metadata = getConditionalMetadata(request);
+      if (metadata != null) {
+        String etag = metadata.getETag(isGzip(request, metadata));
+        if (isNoneMatchMatched(ifNoneMatch, etag)) {
+          response.setHeader("ETag", etag);
+          if (metadata.export.getTmpFile().getName().endsWith(DiaImpl.SVG_EXTENSION)) {
+            response.addHeader("Vary", "Accept-Encoding");
+          }
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+        if (metadata.lastModified != 0) {
+          response.setDateHeader("Last-Modified", metadata.lastModified);
+        }
+      }
+      // If-Modified-Since must be ignored when If-None-Match is present (RFC 9110 section 13.1.3), so bypass the
+      // getLastModified check of HttpServlet.service
+      if ("GET".equals(method)) {
+        doGet(request, response);
+      } else {
+        doHead(request, response);
+      }
+      return;
+    }
+    super.service(request, response);
+  }
+
   @Override
   protected long getLastModified(HttpServletRequest request) {
     try {
-      DiaExport thumbnail = getThumbnail(request);
-      if (thumbnail == null) {
+      ExportMetadata metadata = getConditionalMetadata(request);
+      if (metadata == null) {
         return -1;
       } else {
-        long lastModified = thumbnail.getTmpFile().lastModified();
+        long lastModified = metadata.lastModified;
         return lastModified == 0 ? -1 : lastModified;
       }
+    } catch (ExportRejectedException e) {
+      // Will be rejected again by doGet
+      return -1;
     } catch (IOException | ServletException e) {
       getServletContext().log(null, e);
       return -1;
     }
   }
 
+  /**
+   * The request attribute set by Apache Tomcat when it supports sending the response body directly from a file.
+   */
+  private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+  /**
+   * Indicates a range that cannot be satisfied.
+   */
+  private static final long[] UNSATISFIABLE_RANGE = {};
+
+  /**
+   * Parses a single byte range.  Multiple ranges are not supported and are served as the full content.
+   *
+   * @return  {@code {first, last}} (inclusive), {@link #UNSATISFIABLE_RANGE}, or {@code null} to serve the full content
+   */
+  private static long[] parseRange(String range, long length) {
+    final String prefix = "bytes=";
+    if (!range.regionMatches(true, 0, prefix, 0, prefix.length())) {
+      return null;
+    }
+    String spec = range.substring(prefix.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1 || spec.indexOf(',') != -1) {
+      return null;
+    }
+    String firstStr = spec.substring(0, dash).trim();
+    String lastStr = spec.substring(dash + 1).trim();
+    try {
+      if (firstStr.isEmpty()) {
+        // Suffix range
+        if (lastStr.isEmpty()) {
+          return null;
+        }
+        long suffix = Long.parseLong(lastStr);
+        if (suffix < 0) {
+          return null;
+        }
+        if (suffix == 0 || length == 0) {
+          return UNSATISFIABLE_RANGE;
+        }
+        return new long[]{Math.max(0, length - suffix), length - 1};
+      }
+      long first = Long.parseLong(firstStr);
+      long last = lastStr.isEmpty() ? (length - 1) : Long.parseLong(lastStr);
+      if (last < first) {
+        return null;
+      }
+      if (first >= length) {
+        return UNSATISFIABLE_RANGE;
+      }
+      return new long[]{first, Math.min(last, length - 1)};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks if a range request should be applied given any {@code If-Range} header, using strong comparison.
+   */
+  private static boolean isIfRangeMatched(HttpServletRequest request, File file, String etag) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(etag);
+    }
+    try {
+      long ifRangeDate = request.getDateHeader("If-Range");
+      return ifRangeDate != -1 && (file.lastModified() / 1000) == (ifRangeDate / 1000);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    DiaExport thumbnail = getThumbnail(request);
+    serve(request, response, true);
+  }
+
+  /**
+   * Sends the same headers as {@link #doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}
+   * without reading the export.
+   */
+  @Override
+  protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    serve(request, response, false);
+  }
+
+  private void serve(HttpServletRequest request, HttpServletResponse response, boolean writeBody) throws ServletException, IOException {
+    ExportMetadata thumbnail = getThumbnail(request);
     if (thumbnail == null) {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
     } else {
+      File file = thumbnail.export.getTmpFile();
+      boolean gzip = false;
       // Write output
       response.resetBuffer();
-      response.setContentType(ContentType.PNG);
-      long length = thumbnail.getTmpFile().length();
-      if (length > 0) {
-        response.setContentLengthLong(length);
+      if (file.getName().endsWith(DiaImpl.SVG_EXTENSION)) {
+        response.setContentType(DiaImpl.SVG_CONTENT_TYPE);
+        response.addHeader("Vary", "Accept-Encoding");
+        File gzipFile = new File(file.getPath() + DiaImpl.GZIP_EXTENSION);
+        if (acceptsGzip(request) && gzipFile.lastModified() >= file.lastModified()) {
+          response.setHeader("Content-Encoding", "gzip");
+          file = gzipFile;
+          gzip = true;
+        }
+      } else {
+        response.setContentType(ContentType.PNG);
+      }
+      if (thumbnail.export.isStale()) {
+        // Must be revalidated, to get the re-export once ready
+        response.setHeader("Cache-Control", "no-cache");
+      }
+      String etag = thumbnail.getETag(gzip);
+      response.setHeader("ETag", etag);
+      response.setHeader("Accept-Ranges", "bytes");
+      long length = file.length();
+      long first = 0;
+      long last = length - 1;
+      String range = request.getHeader("Range");
+      if (range != null && isIfRangeMatched(request, file, etag)) {
+        long[] parsed = parseRange(range, length);
+        if (parsed == UNSATISFIABLE_RANGE) {
+          response.setHeader("Content-Range", "bytes */" + length);
+          response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+        if (parsed != null) {
+          first = parsed[0];
+          last = parsed[1];
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+        }
+      }
+      long contentLength = last - first + 1;
+      response.setContentLengthLong(contentLength);
+      if (writeBody && contentLength > 0) {
+        byte[] bytes = DiaImpl.getExportBytes(file);
+        if (bytes != null && bytes.length == length) {
+          response.getOutputStream().write(bytes, (int) first, (int) contentLength);
+        } else if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+          // Let the container send directly from the file
+          request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getAbsolutePath());
+          request.setAttribute(SENDFILE_START_ATTRIBUTE, first);
+          request.setAttribute(SENDFILE_END_ATTRIBUTE, last + 1);
+        } else {
+          // Copy fallback: the response stream is not a file or socket channel, so this is an ordinary copy through
+          // user-space buffers, used only for the requested range
+          try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Not closed, since would close the response output stream
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = first;
+            long remaining = contentLength;
+            while (remaining > 0) {
+              long transferred = channel.transferTo(position, remaining, out);
+              if (transferred <= 0) {
+                throw new EOFException("Export truncated while sending: " + file);
+              }
+              position += transferred;
+              remaining -= transferred;
+            }
+          }
+        }
       }
-      OutputStream out = response.getOutputStream();
-      FileUtils.copy(thumbnail.getTmpFile(), out);
     }
   }
 }
@@ -0,0 +1,71 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet;
+
+import com.semanticcms.dia.servlet.impl.DiaPrewarm;
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the progress of the {@link DiaPrewarm}, responding with {@code 503} until finished.  This may be used as a
+ * health check to keep a node out of a load balancer until its diagrams are exported.
+ */
+@WebServlet(DiaPrewarmServlet.SERVLET_PATH)
+public class DiaPrewarmServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String SERVLET_PATH = "/semanticcms-dia-servlet/prewarm-status";
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    DiaPrewarm prewarm = DiaPrewarm.getInstance(getServletContext());
+    if (prewarm == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    } else {
+      boolean finished = prewarm.isFinished();
+      response.resetBuffer();
+      response.setStatus(finished ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      response.setHeader("Cache-Control", "no-store");
+      response.setContentType("text/plain");
+      response.setCharacterEncoding("UTF-8");
+      PrintWriter out = response.getWriter();
+      out.print("finished=");
+      out.println(finished);
+      out.print("total=");
+      out.println(prewarm.getTotal());
+      out.print("completed=");
+      out.println(prewarm.getCompleted());
+      out.print("failed=");
+      out.println(prewarm.getFailed());
+      out.print("crawlFailed=");
+      out.println(prewarm.isCrawlFailed());
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The SHA-256 hash of the contents of a diagram, used to name its exports.  Exports are then shared by identical
+ * diagrams and remain valid when a diagram is touched, copied, or checked-out without changing its contents.
+ */
+final class ContentHash {
+
+  private static final String ALGORITHM = "SHA-256";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * A hash is not cached when the file was modified this recently, since the file could still be modified again
+   * within the resolution of the filesystem timestamps without changing its modified time or length.
+   */
+  private static final long RACY_MILLIS = 2000;
+
+  /**
+   * The hash of each diagram, replaced when the diagram is modified.
+   */
+  private static final ConcurrentMap<File, ContentHash> cache = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the hash of a diagram, only reading the file when not already hashed for the given modified time and
+   * current length.  The length is not checked while the modified time is {@linkplain FileMetadataCache#isCached(java.io.File)
+   * cached by a watch service}, since any change to the file would have invalidated it.
+   *
+   * @return  the hash as 64 lower-case hexadecimal digits
+   */
+  static String getHash(File diaFile, long lastModified, FileMetadataCache metadataCache) throws IOException {
+    ContentHash contentHash = cache.get(diaFile);
+    if (
+        contentHash != null
+            && contentHash.lastModified == lastModified
+            && metadataCache.isCached(diaFile)
+    ) {
+      return contentHash.hash;
+    }
+    long length = diaFile.length();
+    if (contentHash == null || contentHash.lastModified != lastModified || contentHash.length != length) {
+      contentHash = new ContentHash(lastModified, length, hash(diaFile));
+      if (System.currentTimeMillis() - lastModified >= RACY_MILLIS) {
+        cache.put(diaFile, contentHash);
+      } else {
+        cache.remove(diaFile);
+      }
+    }
+    return contentHash.hash;
+  }
+
+  /**
+   * Gets the hashes of diagrams that have been deleted, excluding any still used by another diagram.  Each deleted
+   * diagram is forgotten, so is only returned once.
+   */
+  static Set<String> getOrphanedHashes() {
+    Set<String> deleted = new HashSet<>();
+    Set<String> live = new HashSet<>();
+    Iterator<Map.Entry<File, ContentHash>> iter = cache.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<File, ContentHash> entry = iter.next();
+      String hash = entry.getValue().hash;
+      if (entry.getKey().exists()) {
+        live.add(hash);
+      } else {
+        deleted.add(hash);
+        iter.remove();
+      }
+    }
+    deleted.removeAll(live);
+    return deleted;
+  }
+
+  private static String hash(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Required of all Java platforms
+      throw new AssertionError(ALGORITHM, e);
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buff = new byte[BUFFER_SIZE];
+      int numBytes;
+      while ((numBytes = in.read(buff)) != -1) {
+        digest.update(buff, 0, numBytes);
+      }
+    }
+    byte[] bytes = digest.digest();
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private final long lastModified;
+  private final long length;
+  private final String hash;
+
+  private ContentHash(long lastModified, long length, String hash) {
+    this.lastModified = lastModified;
+    this.length = length;
+    this.hash = hash;
+  }
+}
@@ -30,15 +30,26 @@ public final class DiaExport {
   private final File tmpFile;
   private final int width;
   private final int height;
+  private final boolean stale;
 
   DiaExport(
       File tmpFile,
       int width,
-      int height
+      int height,
+      boolean stale
   ) {
     this.tmpFile = tmpFile;
     this.width = width;
     this.height = height;
+    this.stale = stale;
+  }
+
+  DiaExport(
+      File tmpFile,
+      int width,
+      int height
+  ) {
+    this(tmpFile, width, height, false);
   }
 
   public File getTmpFile() {
@@ -52,4 +63,13 @@ public final class DiaExport {
   public int getHeight() {
     return height;
   }
+
+  /**
+   * Is this the export of a previous version of the diagram, served while the diagram is re-exported?
+   *
+   * @see  DiaImpl#exportOrStale(javax.servlet.ServletContext, com.semanticcms.core.model.PageRef, java.lang.Integer, java.lang.Integer, java.lang.String, com.semanticcms.dia.servlet.impl.ExportStore)
+   */
+  public boolean isStale() {
+    return stale;
+  }
 }
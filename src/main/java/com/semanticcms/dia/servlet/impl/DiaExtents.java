@@ -0,0 +1,204 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The extents of a diagram, which is the union of the bounding boxes of all its objects.  This is read directly from
+ * the (optionally gzip-compressed) Dia XML, so the aspect ratio of a diagram is known without exporting it.
+ */
+final class DiaExtents {
+
+  /**
+   * The value of the {@code name} attribute of the {@code dia:attribute} containing an object's bounding box.
+   */
+  private static final String BOUNDING_BOX_ATTRIBUTE = "obj_bb";
+
+  /**
+   * The extents of each diagram, replaced when the diagram is modified.
+   */
+  private static final ConcurrentMap<File, DiaExtents> cache = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the extents of a diagram, parsing only when not already parsed for the given modified time.
+   *
+   * @return  the extents or {@code null} when the diagram has no objects
+   */
+  static DiaExtents getExtents(File diaFile, long lastModified) throws IOException {
+    DiaExtents extents = cache.get(diaFile);
+    if (extents == null || extents.lastModified != lastModified) {
+      extents = parse(diaFile, lastModified);
+      cache.put(diaFile, extents);
+    }
+    return extents.isEmpty() ? null : extents;
+  }
+
+  private static DiaExtents parse(File diaFile, long lastModified) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try (InputStream in = openDecompressed(diaFile)) {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        double left = Double.POSITIVE_INFINITY;
+        double top = Double.POSITIVE_INFINITY;
+        double right = Double.NEGATIVE_INFINITY;
+        double bottom = Double.NEGATIVE_INFINITY;
+        boolean inBoundingBox = false;
+        while (reader.hasNext()) {
+          int event = reader.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            String localName = reader.getLocalName();
+            if ("attribute".equals(localName)) {
+              inBoundingBox = BOUNDING_BOX_ATTRIBUTE.equals(reader.getAttributeValue(null, "name"));
+            } else if (inBoundingBox && "rectangle".equals(localName)) {
+              // Format is "left,top;right,bottom"
+              String val = reader.getAttributeValue(null, "val");
+              if (val != null) {
+                int semicolon = val.indexOf(';');
+                if (semicolon != -1) {
+                  double[] topLeft = parsePoint(val.substring(0, semicolon));
+                  double[] bottomRight = parsePoint(val.substring(semicolon + 1));
+                  if (topLeft != null && bottomRight != null) {
+                    left = Math.min(left, topLeft[0]);
+                    top = Math.min(top, topLeft[1]);
+                    right = Math.max(right, bottomRight[0]);
+                    bottom = Math.max(bottom, bottomRight[1]);
+                  }
+                }
+              }
+            }
+          } else if (event == XMLStreamConstants.END_ELEMENT && "attribute".equals(reader.getLocalName())) {
+            inBoundingBox = false;
+          }
+        }
+        return new DiaExtents(lastModified, left, top, right, bottom);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Unable to parse diagram: " + diaFile, e);
+    }
+  }
+
+  /**
+   * Opens the diagram, decompressing when gzip-compressed.  Dia may save either way.
+   */
+  private static InputStream openDecompressed(File diaFile) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(diaFile));
+    try {
+      in.mark(2);
+      int b1 = in.read();
+      int b2 = in.read();
+      in.reset();
+      if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >>> 8)) {
+        return new GZIPInputStream(in);
+      }
+      return in;
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  private static double[] parsePoint(String point) {
+    int comma = point.indexOf(',');
+    if (comma == -1) {
+      return null;
+    }
+    try {
+      return new double[]{
+          Double.parseDouble(point.substring(0, comma).trim()),
+          Double.parseDouble(point.substring(comma + 1).trim())
+      };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private final long lastModified;
+  private final double left;
+  private final double top;
+  private final double right;
+  private final double bottom;
+
+  private DiaExtents(long lastModified, double left, double top, double right, double bottom) {
+    this.lastModified = lastModified;
+    this.left = left;
+    this.top = top;
+    this.right = right;
+    this.bottom = bottom;
+  }
+
+  private boolean isEmpty() {
+    return !(right > left && bottom > top);
+  }
+
+  /**
+   * Gets the width in diagram units (centimeters).
+   */
+  double getWidth() {
+    return right - left;
+  }
+
+  /**
+   * Gets the height in diagram units (centimeters).
+   */
+  double getHeight() {
+    return bottom - top;
+  }
+
+  /**
+   * Computes the size of an export, maintaining aspect ratio when either dimension is not provided.
+   *
+   * @return  {@code {width, height}}
+   */
+  int[] getScaledSize(Integer width, Integer height) {
+    int scaledWidth;
+    int scaledHeight;
+    if (width == null) {
+      scaledHeight = height;
+      scaledWidth = (int) Math.round(getWidth() * height / getHeight());
+    } else {
+      scaledWidth = width;
+      scaledHeight = height != null ? height : (int) Math.round(getHeight() * width / getWidth());
+    }
+    return new int[]{
+        Math.max(1, scaledWidth),
+        Math.max(1, scaledHeight)
+    };
+  }
+}
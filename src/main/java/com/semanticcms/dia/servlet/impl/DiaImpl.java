@@ -1,6 +1,6 @@
 /*
  * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
- * Copyright (C) 2013, 2014, 2015, 2016, 2017, 2018, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2013, 2014, 2015, 2016, 2017, 2018, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,6 +23,8 @@
 
 package com.semanticcms.dia.servlet.impl;
 
+import static com.aoapps.encoding.TextInXhtmlAttributeEncoder.encodeTextInXhtmlAttribute;
+
 import com.aoapps.concurrent.KeyedConcurrencyReducer;
 import com.aoapps.encoding.JavaScriptWriter;
 import com.aoapps.hodgepodge.awt.image.ImageSizeCache;
@@ -30,7 +32,6 @@ import com.aoapps.html.any.AnyA;
 import com.aoapps.html.any.AnyIMG;
 import com.aoapps.html.any.AnyPhrasingContent;
 import com.aoapps.html.any.AnySCRIPT;
-import com.aoapps.lang.ProcessResult;
 import com.aoapps.lang.concurrent.ExecutionExceptions;
 import com.aoapps.lang.exception.WrappedException;
 import com.aoapps.lang.util.Sequence;
@@ -46,224 +47,1716 @@ import com.semanticcms.core.servlet.PageRefResolver;
 import com.semanticcms.dia.model.Dia;
 import com.semanticcms.dia.servlet.DiaExportServlet;
 import java.awt.Dimension;
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
 import javax.servlet.ServletException;
+import javax.servlet.annotation.WebListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 public final class DiaImpl {
 
-  /** Make no instances. */
-  private DiaImpl() {
-    throw new AssertionError();
+  /** Make no instances. */
+  private DiaImpl() {
+    throw new AssertionError();
+  }
+
+  private static final String LINUX_DIA_PATH = "/usr/bin/dia";
+
+  private static final String WINDOWS_DIA_PATH = "C:\\Program Files (x86)\\Dia\\bin\\dia.exe";
+
+  // This was used for opening the diagram, moved to semanticcms-openfile-servlet to avoid dependency.
+  // private static final String WINDOWS_DIAW_PATH = "C:\\Program Files (x86)\\Dia\\bin\\diaw.exe";
+
+  /**
+   * The subdirectory of the temp directory used by the default {@link DirectoryExportStore}.
+   */
+  private static final String TEMP_SUBDIR = DiaExport.class.getName();
+
+  private static final String MISSING_IMAGE_PATH = "/semanticcms-dia-servlet/images/broken-chain-1164481-640x480.jpg";
+  private static final int MISSING_IMAGE_WIDTH = 640;
+  private static final int MISSING_IMAGE_HEIGHT = 480;
+
+  public static final char SIZE_SEPARATOR = '-';
+  public static final char EMPTY_SIZE = '_';
+  public static final char DIMENSION_SEPARATOR = 'x';
+  public static final String PNG_EXTENSION = ".png";
+  public static final String SVG_EXTENSION = ".svg";
+
+  /**
+   * The extension added to the precompressed variant of SVG exports.
+   */
+  public static final String GZIP_EXTENSION = ".gz";
+
+  /**
+   * The content type of SVG exports.
+   */
+  public static final String SVG_CONTENT_TYPE = "image/svg+xml";
+
+  /**
+   * Follows the size in a PNG URL whose pixel density is chosen by {@link DiaExportServlet} from the Client Hints of
+   * the request, in which case the size is at the lowest pixel density.
+   *
+   * @see  #CLIENT_HINTS_INIT_PARAM
+   */
+  public static final String AUTO_DENSITY_SUFFIX = "@auto";
+
+  /**
+   * The Client Hints request headers used to choose a pixel density, in order of preference.  The {@code Width}
+   * headers give the width of the image in device pixels, from which the pixel density is computed.
+   */
+  public static final List<String> CLIENT_HINTS_HEADERS = Collections.unmodifiableList(
+      Arrays.asList("Sec-CH-DPR", "DPR", "Sec-CH-Width", "Width")
+  );
+
+  /**
+   * The maximum width or height, in pixels, of an export requested by URL.
+   */
+  public static final int MAX_EXPORT_SIZE = 8192;
+
+  /**
+   * The context init parameter that, when {@code "true"}, has Dia export only the highest pixel density while the
+   * lower pixel densities are downscaled in the JVM.
+   */
+  public static final String DOWNSCALE_INIT_PARAM = DiaImpl.class.getName() + ".downscale";
+
+  /**
+   * The context init parameter that, when set to a positive width, has Dia export each diagram only once at this
+   * width.  All other sizes up to this width are then resampled in the JVM from this single export, which is
+   * refreshed when the diagram is modified.  Larger sizes are still exported by Dia.  This is a
+   * {@linkplain #SIZE_BUCKETS_INIT_PARAM size bucket} of a single width, added to any other size buckets.
+   */
+  public static final String MASTER_WIDTH_INIT_PARAM = DiaImpl.class.getName() + ".masterWidth";
+
+  /**
+   * The context init parameter for a comma-separated list of widths, the only sizes exported by Dia.  Every other
+   * size up to the largest width is resampled in the JVM from the export at the nearest larger width, limiting the
+   * number of Dia processes per diagram to the number of widths.  Larger sizes are still exported by Dia.
+   *
+   * @see  #MASTER_WIDTH_INIT_PARAM
+   */
+  public static final String SIZE_BUCKETS_INIT_PARAM = DiaImpl.class.getName() + ".sizeBuckets";
+
+  /**
+   * The context init parameter that, when {@code "true"}, writes each diagram as a single img element with a
+   * {@linkplain #AUTO_DENSITY_SUFFIX density-neutral URL}, with the pixel density chosen from the Client Hints of each
+   * request for the image.  Only the lowest pixel density is exported while writing the page, others are exported
+   * only when requested.  Takes precedence over {@link #SRCSET_INIT_PARAM}.
+   */
+  public static final String CLIENT_HINTS_INIT_PARAM = DiaImpl.class.getName() + ".clientHints";
+
+  /**
+   * The context init parameter that, when {@code "true"}, writes each pixel density in the {@code srcset} of the img
+   * element, with {@code loading="lazy"} and {@code decoding="async"}, instead of links selected by script.
+   * The browser then fetches only the one export for its pixel density.  Ignored when
+   * {@link #CLIENT_HINTS_INIT_PARAM} is enabled.
+   */
+  public static final String SRCSET_INIT_PARAM = DiaImpl.class.getName() + ".srcset";
+
+  /**
+   * The context init parameter that, when {@code "true"}, writes diagrams as a single SVG export instead of
+   * PNG exports in each pixel density.  This may be overridden per diagram.
+   */
+  public static final String SVG_INIT_PARAM = DiaImpl.class.getName() + ".svg";
+
+  /**
+   * The context init parameter for the maximum number of bytes of exports cached in memory by
+   * {@link DiaExportServlet}.  Set to {@code 0} to disable.
+   */
+  public static final String EXPORT_CACHE_SIZE_INIT_PARAM = DiaImpl.class.getName() + ".exportCacheSize";
+
+  /**
+   * The default maximum number of bytes of exports cached in memory.
+   */
+  public static final long DEFAULT_EXPORT_CACHE_SIZE = 16L * 1024 * 1024;
+
+  /**
+   * The context init parameter that, when {@code "true"}, caches the modified times of diagrams and exports, using a
+   * {@link java.nio.file.WatchService} to be notified of changes.  Do not enable when diagrams may be modified
+   * where the watch service is not notified, such as from another host on a network filesystem.
+   */
+  public static final String WATCH_FILES_INIT_PARAM = DiaImpl.class.getName() + ".watchFiles";
+
+  /**
+   * The context init parameter that, when {@code "true"}, writes diagrams without waiting for any exports.
+   * The dimensions are computed from the diagram file, and each PNG is exported when first requested from
+   * {@link DiaExportServlet}.
+   */
+  public static final String LAZY_INIT_PARAM = DiaImpl.class.getName() + ".lazy";
+
+  /**
+   * The context init parameter that, when {@code "true"}, starts exporting diagrams in the background when first
+   * found during {@link CaptureLevel#META} capture, so they are already up-to-date by the time the page body is
+   * captured.
+   */
+  public static final String SPECULATIVE_INIT_PARAM = DiaImpl.class.getName() + ".speculative";
+
+  /**
+   * The context init parameter that, when set, stores exports in the given directory, which may be shared by many
+   * servers, instead of in the temp directory of this application.
+   *
+   * @see  SharedDirectoryExportStore
+   */
+  public static final String EXPORT_DIRECTORY_INIT_PARAM = DiaImpl.class.getName() + ".exportDirectory";
+
+  /**
+   * The application-scope attribute holding the {@link ExportStore}.  An application may provide its own store by
+   * setting this attribute before any diagram is exported.
+   *
+   * @see  #getExportStore(javax.servlet.ServletContext)
+   */
+  public static final String EXPORT_STORE_APPLICATION_ATTRIBUTE = DiaImpl.class.getName() + ".exportStore";
+
+  private static final ScopeEE.Application.Attribute<ExportStore> EXPORT_STORE_ATTRIBUTE =
+      ScopeEE.APPLICATION.attribute(EXPORT_STORE_APPLICATION_ATTRIBUTE);
+
+  /**
+   * The context init parameter for the number of seconds after a diagram is modified that its previous export may
+   * still be served by {@link #exportOrStale(javax.servlet.ServletContext, com.semanticcms.core.model.PageRef, java.lang.Integer, java.lang.Integer, java.lang.String, com.semanticcms.dia.servlet.impl.ExportStore)}
+   * while it is re-exported in the background.  Defaults to {@code 0}, which always waits for the re-export.
+   */
+  public static final String MAX_STALE_INIT_PARAM = DiaImpl.class.getName() + ".maxStale";
+
+  /**
+   * The context init parameter for the maximum total bytes of exports kept on disk, {@code 0} for unlimited.
+   *
+   * @see  #DEFAULT_DISK_QUOTA
+   */
+  public static final String DISK_QUOTA_INIT_PARAM = DiaImpl.class.getName() + ".diskQuota";
+
+  /**
+   * The default maximum total bytes of exports kept on disk.
+   */
+  public static final long DEFAULT_DISK_QUOTA = 1024L * 1024 * 1024;
+
+  /**
+   * The context init parameter for the maximum number of exports kept on disk, {@code 0} for unlimited.
+   *
+   * @see  #DEFAULT_DISK_QUOTA_FILES
+   */
+  public static final String DISK_QUOTA_FILES_INIT_PARAM = DiaImpl.class.getName() + ".diskQuotaFiles";
+
+  /**
+   * The default maximum number of exports kept on disk.
+   */
+  public static final int DEFAULT_DISK_QUOTA_FILES = 100000;
+
+  /**
+   * The context init parameter for the number of seconds between each cleaning of the exports on disk,
+   * {@code 0} to never clean.
+   *
+   * @see  #DEFAULT_JANITOR_INTERVAL
+   */
+  public static final String JANITOR_INTERVAL_INIT_PARAM = DiaImpl.class.getName() + ".janitorInterval";
+
+  /**
+   * The default number of seconds between each cleaning of the exports on disk.
+   */
+  public static final int DEFAULT_JANITOR_INTERVAL = 300;
+
+  /**
+   * The context init parameter that, when {@code "true"}, also cleans the shared {@link #EXPORT_DIRECTORY_INIT_PARAM
+   * export directory}.  Each server only knows of its own accesses, so this should be enabled on only one server of
+   * those sharing the directory.  The shared directory is not cleaned by default.
+   */
+  public static final String JANITOR_SHARED_INIT_PARAM = DiaImpl.class.getName() + ".janitorShared";
+
+  /**
+   * The maximum number of background exports waiting to be run, beyond which more are discarded.
+   */
+  private static final int MAX_QUEUED_BACKGROUND_EXPORTS = 1000;
+
+  /**
+   * The maximum number of previous exports remembered for serving while stale.
+   */
+  private static final int MAX_PREVIOUS_EXPORTS = 10000;
+
+  /**
+   * The context init parameter for the maximum number of Dia processes run at once.
+   * Defaults to the number of available processors.
+   */
+  public static final String MAX_CONCURRENT_EXPORTS_INIT_PARAM = DiaImpl.class.getName() + ".maxConcurrentExports";
+
+  /**
+   * The context init parameter for the maximum number of exports waiting for a Dia process, beyond which exports are
+   * rejected with {@link ExportRejectedException}.
+   */
+  public static final String MAX_QUEUED_EXPORTS_INIT_PARAM = DiaImpl.class.getName() + ".maxQueuedExports";
+
+  /**
+   * The default maximum number of exports waiting for a Dia process.
+   */
+  public static final int DEFAULT_MAX_QUEUED_EXPORTS = 100;
+
+  /**
+   * The context init parameter for the number of seconds a Dia process may run before it and its descendants are
+   * destroyed, or {@code 0} for no time limit.
+   */
+  public static final String EXPORT_TIMEOUT_INIT_PARAM = DiaImpl.class.getName() + ".exportTimeout";
+
+  /**
+   * The default number of seconds a Dia process may run.
+   */
+  public static final int DEFAULT_EXPORT_TIMEOUT = 60;
+
+  /**
+   * The context init parameter for the number of milliseconds an export waits for other exports of the same size and
+   * format, which are then exported together through a single Dia process.  Defaults to {@code 0}, which exports
+   * each diagram through its own Dia process.
+   */
+  public static final String BATCH_WINDOW_INIT_PARAM = DiaImpl.class.getName() + ".batchWindow";
+
+  /**
+   * The maximum number of diagrams exported through a single Dia process.
+   */
+  private static final int MAX_BATCH_SIZE = 32;
+
+  /**
+   * Configures the caches and stops their background threads on shutdown.
+   */
+  @WebListener("Configures the caches of diagram exports and stops their background threads on shutdown.")
+  public static class Initializer implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+      ServletContext servletContext = event.getServletContext();
+      configureExportCache(servletContext);
+      configureExportBulkhead(servletContext);
+      configureExportTimeout(servletContext);
+      configureExportBatcher(servletContext);
+      if (Boolean.parseBoolean(servletContext.getInitParameter(WATCH_FILES_INIT_PARAM))) {
+        try {
+          fileMetadataCache.enable();
+        } catch (IOException e) {
+          servletContext.log("Unable to watch files, modified times will not be cached", e);
+        }
+      }
+      configureExportJanitor(servletContext);
+      configureSizeBuckets(servletContext);
+      if (
+          Boolean.parseBoolean(servletContext.getInitParameter(SPECULATIVE_INIT_PARAM))
+              || getIntInitParameter(servletContext, MAX_STALE_INIT_PARAM, 0) > 0
+      ) {
+        AtomicInteger threadNum = new AtomicInteger();
+        int backgroundThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        // Rejects when full, which is handled as discarded by exportInBackground
+        // Core size is the maximum, since threads beyond the core are only added once the queue is full
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            backgroundThreads,
+            backgroundThreads,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_BACKGROUND_EXPORTS),
+            r -> {
+              Thread thread = new Thread(r, DiaImpl.class.getName() + ".background-" + threadNum.incrementAndGet());
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }
+        );
+        // Idle threads still stop
+        executor.allowCoreThreadTimeOut(true);
+        backgroundExecutor = executor;
+      }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+      ExecutorService executor = backgroundExecutor;
+      if (executor != null) {
+        backgroundExecutor = null;
+        executor.shutdownNow();
+      }
+      ExportJanitor janitor = exportJanitor;
+      if (janitor != null) {
+        exportJanitor = null;
+        janitor.stop();
+      }
+      fileMetadataCache.disable();
+      resourceFiles.clear();
+      failedExports.clear();
+      previousExports.clear();
+    }
+  }
+
+  /**
+   * The request key used to ensure per-request unique element IDs.
+   */
+  private static final ScopeEE.Request.Attribute<Sequence> ID_SEQUENCE_REQUEST_ATTRIBUTE =
+      ScopeEE.REQUEST.attribute(DiaImpl.class.getName() + ".idSequence");
+
+  /**
+   * The request key used to export each diagram and size only once per request, even when written many times.
+   *
+   * @see  #getRequestExports(javax.servlet.http.HttpServletRequest, java.util.List, com.semanticcms.dia.servlet.impl.DiaImpl.RequestExports)
+   */
+  private static final ScopeEE.Request.Attribute<ConcurrentMap<List<Object>, List<DiaExport>>> EXPORTS_REQUEST_ATTRIBUTE =
+      ScopeEE.REQUEST.attribute(DiaImpl.class.getName() + ".exports");
+
+  /**
+   * The alt link ID prefix.
+   */
+  private static final String ALT_LINK_ID_PREFIX = "semanticcms-dia-servlet-alt-pixel-ratio-";
+
+  /**
+   * The default width when neither width nor height provided.
+   */
+  private static final int DEFAULT_WIDTH = 200;
+
+  /**
+   * The supported pixel densities, these must be ordered from lowest to highest.  The first is the default.
+   */
+  private static final int[] PIXEL_DENSITIES = {
+      1,
+      2,
+      3,
+      4
+  };
+
+  /**
+   * The start of the script that selects the best pixel density, through the start of {@code updateImageSrc}.
+   */
+  private static final String SCRIPT_START = "if (window.devicePixelRatio) {\n"
+      // Closure for locally scoped variables
+      + "  (function () {\n"
+      // Function to update src
+      + "    function updateImageSrc() {\n";
+
+  /**
+   * The part of the script for each pixel density, from highest to lowest, before the JavaScript-encoded id of the
+   * img element.
+   */
+  private static final String[] SCRIPT_BEFORE_REF_ID = new String[PIXEL_DENSITIES.length];
+
+  static {
+    for (int i = PIXEL_DENSITIES.length - 1; i >= 0; i--) {
+      StringBuilder part = new StringBuilder("      ");
+      if (i != (PIXEL_DENSITIES.length - 1)) {
+        part.append("else ");
+      }
+      if (i > 0) {
+        part.append("if (window.devicePixelRatio > ").append(PIXEL_DENSITIES[i - 1]).append(") ");
+      }
+      part.append("{\n"
+          + "        document.getElementById(");
+      SCRIPT_BEFORE_REF_ID[i] = part.toString();
+    }
+  }
+
+  /**
+   * The part of the script for each pixel density between the id of the img element and the number of its alt link.
+   */
+  private static final String SCRIPT_BEFORE_ALT_LINK_NUM = ").src = document.getElementById(\"" + ALT_LINK_ID_PREFIX;
+
+  /**
+   * The part of the script for each pixel density after the number of its alt link.
+   */
+  private static final String SCRIPT_AFTER_ALT_LINK_NUM = "\").getAttribute(\"href\");\n"
+      + "      }\n";
+
+  /**
+   * The end of the script, after the end of {@code updateImageSrc}.
+   */
+  private static final String SCRIPT_END;
+
+  static {
+    StringBuilder end = new StringBuilder("    }\n"
+        // Perform initial setup
+        + "    updateImageSrc();\n"
+        // Change image source when pixel ratio changes
+        + "    if (window.matchMedia) {\n");
+    for (int pixelDensity : PIXEL_DENSITIES) {
+      end.append("      window.matchMedia(\"screen and (max-resolution: ")
+          .append(pixelDensity)
+          .append("dppx)\").addListener(function(e) {\n"
+              + "        updateImageSrc();\n"
+              + "      });\n");
+    }
+    end.append("    }\n"
+        + "  })();\n"
+        + "}");
+    SCRIPT_END = end.toString();
+  }
+
+  /**
+   * The maximum number of diagrams and sizes to remember URLs for.
+   */
+  private static final int MAX_ENCODED_URL_PATHS = 10000;
+
+  /**
+   * The encoded URL paths for each pixel density by diagram, size, and modified times.
+   */
+  private static final Map<List<Object>, String[]> encodedUrlPaths = Collections.synchronizedMap(
+      new LinkedHashMap<List<Object>, String[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, String[]> eldest) {
+          return size() > MAX_ENCODED_URL_PATHS;
+        }
+      }
+  );
+
+  /**
+   * Gets the URL paths for each pixel density, already encoded by {@link URIEncoder#encodeURI(java.lang.String)}
+   * but not yet by {@link HttpServletResponse#encodeURL(java.lang.String)}.  These are only built once per diagram,
+   * size, and modified times.
+   */
+  private static String[] getEncodedUrlPaths(
+      HttpServletRequest request,
+      PageRef pageRef,
+      int width,
+      int height,
+      long[] lastModifieds
+  ) throws ServletException {
+    List<Object> key = new ArrayList<>(5 + lastModifieds.length);
+    key.add(request.getContextPath());
+    key.add(pageRef);
+    key.add(width);
+    key.add(height);
+    key.add(!"false".equalsIgnoreCase(request.getHeader(LastModifiedServlet.LAST_MODIFIED_HEADER_NAME)));
+    for (long lastModified : lastModifieds) {
+      key.add(lastModified);
+    }
+    String[] urlPaths = encodedUrlPaths.get(key);
+    if (urlPaths == null) {
+      urlPaths = new String[PIXEL_DENSITIES.length];
+      for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
+        urlPaths[i] = URIEncoder.encodeURI(
+            buildUrlPath(
+                request,
+                pageRef,
+                width,
+                height,
+                PIXEL_DENSITIES[i],
+                PNG_EXTENSION,
+                lastModifieds[i]
+            )
+        );
+      }
+      encodedUrlPaths.put(key, urlPaths);
+    }
+    return urlPaths;
+  }
+
+  private static boolean isWindows() {
+    String osName = System.getProperty("os.name");
+    return osName != null && osName.toLowerCase(Locale.ROOT).contains("windows");
+  }
+
+  private static String getDiaExportPath() {
+    if (isWindows()) {
+      return WINDOWS_DIA_PATH;
+    } else {
+      return LINUX_DIA_PATH;
+    }
+  }
+
+  /* This was used for opening the diagram, moved to semanticcms-openfile-servlet to avoid dependency.
+  public static String getDiaOpenPath() {
+    if (isWindows()) {
+      return WINDOWS_DIAW_PATH;
+    } else {
+      return LINUX_DIA_PATH;
+    }
+  }
+   */
+
+  /**
+   * Make sure each diagram and scaling is only exported once when under concurrent access.
+   */
+  private static final KeyedConcurrencyReducer<File, Void> exportConcurrencyLimiter = new KeyedConcurrencyReducer<>();
+
+  /**
+   * The bytes of recently served exports.
+   */
+  private static final ExportCache exportCache = new ExportCache(DEFAULT_EXPORT_CACHE_SIZE);
+
+  /**
+   * Runs speculative exports and re-exports of stale diagrams, or {@code null} when neither
+   * {@linkplain #SPECULATIVE_INIT_PARAM speculative} nor {@linkplain #MAX_STALE_INIT_PARAM stale} exports are enabled.
+   */
+  private static volatile ExecutorService backgroundExecutor;
+
+  /**
+   * The background exports currently queued or running, to not queue the same export more than once.
+   */
+  private static final Set<List<Object>> backgroundExports = ConcurrentHashMap.newKeySet();
+
+  /**
+   * A task run by {@link #exportInBackground(javax.servlet.ServletContext, com.semanticcms.core.model.PageRef, java.util.List, com.semanticcms.dia.servlet.impl.DiaImpl.BackgroundExport)}.
+   */
+  @FunctionalInterface
+  private interface BackgroundExport {
+    void export() throws InterruptedException, IOException;
+  }
+
+  /**
+   * Queues a low-priority background export, unless already queued or running.  The export is discarded when the
+   * queue is full, since it will be performed in the foreground when needed.
+   *
+   * @param  key  identifies the export to not queue more than once
+   */
+  private static void exportInBackground(
+      ServletContext servletContext,
+      PageRef pageRef,
+      List<Object> key,
+      BackgroundExport export
+  ) {
+    ExecutorService executor = backgroundExecutor;
+    if (executor != null && backgroundExports.add(key)) {
+      boolean queued = false;
+      try {
+        executor.execute(() -> {
+          try {
+            export.export();
+          } catch (InterruptedException e) {
+            // Restore the interrupted status
+            Thread.currentThread().interrupt();
+          } catch (IOException | RuntimeException e) {
+            // Will be tried again, with any error reported, when next exported in the foreground
+            servletContext.log("Background export failed: " + pageRef, e);
+          } finally {
+            backgroundExports.remove(key);
+          }
+        });
+        queued = true;
+      } catch (RejectedExecutionException e) {
+        // Queue full or shutting down
+      } finally {
+        if (!queued) {
+          backgroundExports.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues a background export of the diagram as it will be written.
+   */
+  private static void exportSpeculatively(
+      ServletContext servletContext,
+      PageRef pageRef,
+      int width,
+      int height,
+      Boolean svg
+  ) {
+    exportInBackground(
+        servletContext,
+        pageRef,
+        Arrays.asList(pageRef, width, height, svg),
+        () -> prewarmDiagram(servletContext, pageRef, width, height, svg)
+    );
+  }
+
+  /**
+   * The most recent export of each diagram by size and format, used to serve while stale.
+   */
+  private static final Map<List<Object>, DiaExport> previousExports = Collections.synchronizedMap(
+      new LinkedHashMap<List<Object>, DiaExport>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, DiaExport> eldest) {
+          return size() > MAX_PREVIOUS_EXPORTS;
+        }
+      }
+  );
+
+  /**
+   * Limits the number of concurrent Dia processes across all diagrams.
+   */
+  private static volatile ExportBulkhead exportBulkhead = new ExportBulkhead(
+      Runtime.getRuntime().availableProcessors(),
+      DEFAULT_MAX_QUEUED_EXPORTS
+  );
+
+  static int getIntInitParameter(ServletContext servletContext, String name, int defaultValue) {
+    String value = servletContext.getInitParameter(name);
+    if (value != null) {
+      value = value.trim();
+      if (!value.isEmpty()) {
+        return Integer.parseInt(value);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Configures the limits on concurrent Dia processes from the context.
+   *
+   * @see  #MAX_CONCURRENT_EXPORTS_INIT_PARAM
+   * @see  #MAX_QUEUED_EXPORTS_INIT_PARAM
+   */
+  private static void configureExportBulkhead(ServletContext servletContext) {
+    exportBulkhead = new ExportBulkhead(
+        getIntInitParameter(servletContext, MAX_CONCURRENT_EXPORTS_INIT_PARAM, Runtime.getRuntime().availableProcessors()),
+        getIntInitParameter(servletContext, MAX_QUEUED_EXPORTS_INIT_PARAM, DEFAULT_MAX_QUEUED_EXPORTS)
+    );
+  }
+
+  /**
+   * Gets the number of exports currently waiting for a Dia process.
+   */
+  public static int getQueuedExports() {
+    return exportBulkhead.getQueued();
+  }
+
+  /**
+   * Gets the number of Dia processes currently running.
+   */
+  public static int getRunningExports() {
+    return exportBulkhead.getRunning();
+  }
+
+  private static final AtomicLong rejectedExports = new AtomicLong();
+
+  /**
+   * Gets the total number of exports rejected since startup.
+   *
+   * @see  ExportRejectedException
+   */
+  public static long getRejectedExports() {
+    return rejectedExports.get();
+  }
+
+  private static volatile long exportTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_EXPORT_TIMEOUT);
+
+  /**
+   * Configures the time limit of Dia processes from the context.
+   *
+   * @see  #EXPORT_TIMEOUT_INIT_PARAM
+   */
+  private static void configureExportTimeout(ServletContext servletContext) {
+    int exportTimeout = getIntInitParameter(servletContext, EXPORT_TIMEOUT_INIT_PARAM, DEFAULT_EXPORT_TIMEOUT);
+    if (exportTimeout < 0) {
+      throw new IllegalArgumentException(EXPORT_TIMEOUT_INIT_PARAM + ": must not be negative: " + exportTimeout);
+    }
+    exportTimeoutMillis = TimeUnit.SECONDS.toMillis(exportTimeout);
+  }
+
+  /**
+   * Gathers exports into batches, or {@code null} when each diagram is exported through its own Dia process.
+   */
+  private static volatile ExportBatcher exportBatcher;
+
+  /**
+   * Configures the batching of exports from the context.
+   *
+   * @see  #BATCH_WINDOW_INIT_PARAM
+   */
+  private static void configureExportBatcher(ServletContext servletContext) {
+    int batchWindow = getIntInitParameter(servletContext, BATCH_WINDOW_INIT_PARAM, 0);
+    exportBatcher = batchWindow > 0 ? new ExportBatcher(DiaImpl::runDiaBatch, batchWindow, MAX_BATCH_SIZE) : null;
+  }
+
+  /**
+   * Gets the total number of Dia processes destroyed since startup for not completing within their time limit.
+   *
+   * @see  #EXPORT_TIMEOUT_INIT_PARAM
+   */
+  public static long getHungExports() {
+    return DiaProcess.getTimeouts();
+  }
+
+  /**
+   * The modified times of diagrams and exports.
+   *
+   * @see  #WATCH_FILES_INIT_PARAM
+   */
+  private static final FileMetadataCache fileMetadataCache = new FileMetadataCache();
+
+  /**
+   * The resource file of each diagram, only populated while {@link #fileMetadataCache} is enabled.
+   */
+  private static final ConcurrentMap<PageRef, File> resourceFiles = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the resource file of a diagram, which must exist.
+   */
+  private static File getResourceFile(PageRef pageRef) throws FileNotFoundException, IOException {
+    File diaFile = resourceFiles.get(pageRef);
+    if (diaFile == null) {
+      diaFile = pageRef.getResourceFile(true, true);
+      if (fileMetadataCache.isEnabled()) {
+        resourceFiles.put(pageRef, diaFile);
+      }
+    }
+    return diaFile;
+  }
+
+  /**
+   * Gets the modified time of a diagram's resource file.
+   *
+   * @throws  FileNotFoundException  when the diagram no longer exists
+   */
+  private static long getLastModified(PageRef pageRef, File diaFile) throws FileNotFoundException {
+    long lastModified = fileMetadataCache.lastModified(diaFile);
+    if (lastModified == 0) {
+      resourceFiles.remove(pageRef);
+      throw new FileNotFoundException(diaFile.getPath());
+    }
+    return lastModified;
+  }
+
+  /**
+   * Configures the in-memory cache of exports from the {@linkplain #EXPORT_CACHE_SIZE_INIT_PARAM context}.
+   */
+  private static void configureExportCache(ServletContext servletContext) {
+    String exportCacheSize = servletContext.getInitParameter(EXPORT_CACHE_SIZE_INIT_PARAM);
+    if (exportCacheSize != null) {
+      exportCacheSize = exportCacheSize.trim();
+      if (!exportCacheSize.isEmpty()) {
+        exportCache.setMaxBytes(Long.parseLong(exportCacheSize));
+      }
+    }
+  }
+
+  /**
+   * Gets the bytes of an export, which are cached in memory until the export is re-created.
+   *
+   * @return  the bytes or {@code null} when the export is too large to be cached
+   */
+  public static byte[] getExportBytes(File tmpFile) throws IOException {
+    accessed(tmpFile);
+    return exportCache.get(tmpFile);
+  }
+
+  /**
+   * Cleans the exports on disk, or {@code null} when not {@linkplain #JANITOR_INTERVAL_INIT_PARAM enabled}.
+   */
+  private static volatile ExportJanitor exportJanitor;
+
+  /**
+   * Starts cleaning the exports on disk as {@linkplain #JANITOR_INTERVAL_INIT_PARAM configured by the context}.
+   */
+  private static void configureExportJanitor(ServletContext servletContext) {
+    int interval = getIntInitParameter(servletContext, JANITOR_INTERVAL_INIT_PARAM, DEFAULT_JANITOR_INTERVAL);
+    if (interval > 0) {
+      long diskQuota = DEFAULT_DISK_QUOTA;
+      String diskQuotaParam = servletContext.getInitParameter(DISK_QUOTA_INIT_PARAM);
+      if (diskQuotaParam != null) {
+        diskQuotaParam = diskQuotaParam.trim();
+        if (!diskQuotaParam.isEmpty()) {
+          diskQuota = Long.parseLong(diskQuotaParam);
+        }
+      }
+      exportJanitor = new ExportJanitor(
+          () -> getExportStore(servletContext),
+          diskQuota,
+          getIntInitParameter(servletContext, DISK_QUOTA_FILES_INIT_PARAM, DEFAULT_DISK_QUOTA_FILES),
+          interval,
+          Boolean.parseBoolean(servletContext.getInitParameter(JANITOR_SHARED_INIT_PARAM)),
+          tmpFile -> {
+            fileMetadataCache.invalidate(tmpFile);
+            exportCache.remove(tmpFile);
+          }
+      );
+    }
+  }
+
+  /**
+   * Records the access of an export, so recently used exports are kept on disk.
+   */
+  private static void accessed(File tmpFile) {
+    ExportJanitor janitor = exportJanitor;
+    if (janitor != null) {
+      janitor.accessed(tmpFile);
+    }
+  }
+
+  /**
+   * Checks if the lower pixel densities should be downscaled from the highest instead of exported by Dia.
+   *
+   * @see  #DOWNSCALE_INIT_PARAM
+   */
+  private static boolean isDownscale(ServletContext servletContext) {
+    return Boolean.parseBoolean(servletContext.getInitParameter(DOWNSCALE_INIT_PARAM));
+  }
+
+  /**
+   * Checks if diagrams are written as SVG by default.
+   *
+   * @see  #SVG_INIT_PARAM
+   */
+  private static boolean isSvg(ServletContext servletContext) {
+    return Boolean.parseBoolean(servletContext.getInitParameter(SVG_INIT_PARAM));
+  }
+
+  /**
+   * Checks if pixel densities are chosen from Client Hints.
+   *
+   * @see  #CLIENT_HINTS_INIT_PARAM
+   */
+  private static boolean isClientHints(ServletContext servletContext) {
+    return Boolean.parseBoolean(servletContext.getInitParameter(CLIENT_HINTS_INIT_PARAM));
+  }
+
+  /**
+   * Gets the lowest supported pixel density that is at least the given device pixel ratio, or the highest supported
+   * pixel density when the ratio is higher than all.
+   */
+  public static int getPixelDensity(double devicePixelRatio) {
+    for (int pixelDensity : PIXEL_DENSITIES) {
+      if (pixelDensity >= devicePixelRatio) {
+        return pixelDensity;
+      }
+    }
+    return PIXEL_DENSITIES[PIXEL_DENSITIES.length - 1];
+  }
+
+  /**
+   * Limits a pixel density so each provided dimension of its export is at most {@link #MAX_EXPORT_SIZE}, the highest
+   * size accepted by {@link DiaExportServlet}.  Chooses the highest supported pixel density, up to the given pixel
+   * density, that fits, or the lowest supported pixel density when none fit.
+   *
+   * @param  width  the width at the lowest pixel density or {@code 0} when not provided
+   * @param  height  the height at the lowest pixel density or {@code 0} when not provided
+   */
+  public static int limitPixelDensity(int width, int height, int pixelDensity) {
+    int limited = PIXEL_DENSITIES[0];
+    for (int supported : PIXEL_DENSITIES) {
+      if (supported > pixelDensity) {
+        break;
+      }
+      if ((long) width * supported <= MAX_EXPORT_SIZE && (long) height * supported <= MAX_EXPORT_SIZE) {
+        limited = supported;
+      }
+    }
+    return limited;
+  }
+
+  /**
+   * Checks if pixel densities are written in {@code srcset}.
+   *
+   * @see  #SRCSET_INIT_PARAM
+   */
+  private static boolean isSrcset(ServletContext servletContext) {
+    return Boolean.parseBoolean(servletContext.getInitParameter(SRCSET_INIT_PARAM));
+  }
+
+  /**
+   * Writes the img element with a {@code srcset} of all pixel densities.  This is written directly, since the
+   * {@code srcset}, {@code loading}, and {@code decoding} attributes are not provided by {@link AnyIMG}.
+   *
+   * @param  urlPaths  the URL paths of each pixel density, already encoded by {@link HttpServletResponse#encodeURL(java.lang.String)}
+   */
+  private static void writeSrcsetImg(
+      AnyPhrasingContent<?, ?> content,
+      String refId,
+      String[] urlPaths,
+      Dimension imgSize,
+      String alt
+  ) throws IOException {
+    StringBuilder img = new StringBuilder(256 + 64 * urlPaths.length);
+    img.append("<img id=\"");
+    encodeTextInXhtmlAttribute(refId, img);
+    img.append("\" src=\"");
+    encodeTextInXhtmlAttribute(urlPaths[0], img);
+    img.append("\" srcset=\"");
+    for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
+      if (i > 0) {
+        img.append(", ");
+      }
+      // Commas separate candidates, so are percent-encoded within the URL
+      encodeTextInXhtmlAttribute(urlPaths[i].replace(",", "%2C"), img);
+      img.append(' ').append(PIXEL_DENSITIES[i]).append('x');
+    }
+    img.append("\" width=\"").append(imgSize.width)
+        .append("\" height=\"").append(imgSize.height)
+        .append("\" alt=\"");
+    if (alt != null) {
+      encodeTextInXhtmlAttribute(alt, img);
+    }
+    img.append("\" loading=\"lazy\" decoding=\"async\" />");
+    content.unsafe(img);
+  }
+
+  /**
+   * Checks if diagrams are written without waiting for exports.
+   *
+   * @see  #LAZY_INIT_PARAM
+   */
+  private static boolean isLazy(ServletContext servletContext) {
+    return Boolean.parseBoolean(servletContext.getInitParameter(LAZY_INIT_PARAM));
+  }
+
+  /**
+   * Gets the {@linkplain ContentHash hash of the contents} of a diagram, which must exist.
+   *
+   * @throws  FileNotFoundException  when the diagram no longer exists
+   */
+  private static String getContentHash(PageRef pageRef) throws FileNotFoundException, IOException {
+    File diaFile = getResourceFile(pageRef);
+    return ContentHash.getHash(diaFile, getLastModified(pageRef, diaFile), fileMetadataCache);
+  }
+
+  /**
+   * Gets the temp file for the given diagram contents and size.  Since the filename is determined by the contents
+   * of the diagram, an existing temp file is always up-to-date, and identical diagrams share their exports.
+   * This does not access the filesystem and requires no lock.
+   *
+   * @param  contentHash  the {@linkplain ContentHash hash of the contents} of the diagram
+   */
+  private static File getTmpFile(
+      String contentHash,
+      Integer width,
+      Integer height,
+      String extension,
+      ExportStore store
+  ) {
+    // Generate the temp filename, using the first two digits of the hash as a subdirectory to limit directory sizes
+    return store.getFile(
+        contentHash.substring(0, 2)
+            + '/'
+            + contentHash
+            + "-"
+            + (width == null ? "_" : width.toString())
+            + "x"
+            + (height == null ? "_" : height.toString())
+            + extension
+    );
+  }
+
+  /**
+   * Gets the store of exports for the given context, creating the {@linkplain #EXPORT_DIRECTORY_INIT_PARAM configured}
+   * store when not already {@linkplain #EXPORT_STORE_APPLICATION_ATTRIBUTE provided}.
+   */
+  public static ExportStore getExportStore(ServletContext servletContext) {
+    return EXPORT_STORE_ATTRIBUTE.context(servletContext).computeIfAbsent(name -> {
+      String exportDirectory = servletContext.getInitParameter(EXPORT_DIRECTORY_INIT_PARAM);
+      if (exportDirectory != null) {
+        exportDirectory = exportDirectory.trim();
+        if (!exportDirectory.isEmpty()) {
+          return new SharedDirectoryExportStore(new File(exportDirectory));
+        }
+      }
+      File tempDir = ScopeEE.Application.TEMPDIR.context(servletContext).get();
+      return new DirectoryExportStore(new File(tempDir, TEMP_SUBDIR));
+    });
+  }
+
+  /**
+   * The widths exported by Dia, in ascending order, or empty when not {@linkplain #SIZE_BUCKETS_INIT_PARAM configured}.
+   */
+  private static volatile int[] sizeBuckets = new int[0];
+
+  /**
+   * Configures the widths exported by Dia from the {@linkplain #SIZE_BUCKETS_INIT_PARAM context}, including any
+   * {@linkplain #MASTER_WIDTH_INIT_PARAM master width}.
+   */
+  private static void configureSizeBuckets(ServletContext servletContext) {
+    String param = servletContext.getInitParameter(SIZE_BUCKETS_INIT_PARAM);
+    IntStream.Builder widths = IntStream.builder();
+    if (param != null) {
+      for (String bucket : param.split(",")) {
+        bucket = bucket.trim();
+        if (!bucket.isEmpty()) {
+          int width = Integer.parseInt(bucket);
+          if (width <= 0) {
+            throw new IllegalArgumentException(SIZE_BUCKETS_INIT_PARAM + ": widths must be positive: " + param);
+          }
+          widths.add(width);
+        }
+      }
+    }
+    int masterWidth = getIntInitParameter(servletContext, MASTER_WIDTH_INIT_PARAM, 0);
+    if (masterWidth < 0) {
+      throw new IllegalArgumentException(MASTER_WIDTH_INIT_PARAM + ": width must not be negative: " + masterWidth);
+    }
+    if (masterWidth > 0) {
+      widths.add(masterWidth);
+    }
+    sizeBuckets = widths.build().sorted().distinct().toArray();
+  }
+
+  /**
+   * Gets the width exported by Dia to be resampled to the given size, choosing the smallest width that is at least
+   * the requested size in both dimensions.  Resampling is only ever downward, so sizes beyond the largest width are
+   * exported by Dia directly.
+   *
+   * @return  the width or {@code 0} when not using {@linkplain #SIZE_BUCKETS_INIT_PARAM size buckets}, the diagram
+   *          has no objects, or no width is large enough
+   */
+  private static int getSizeBucket(
+      PageRef pageRef,
+      Integer width,
+      Integer height
+  ) throws FileNotFoundException, IOException {
+    int[] buckets = sizeBuckets;
+    if (buckets.length == 0 || (width == null && height == null)) {
+      return 0;
+    }
+    Dimension target = getExportSize(pageRef, width, height);
+    if (target == null) {
+      return 0;
+    }
+    for (int bucket : buckets) {
+      Dimension bucketSize = getExportSize(pageRef, bucket, null);
+      if (bucketSize.width >= target.width && bucketSize.height >= target.height) {
+        return bucket;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Exports the diagram at the given size, resampling from an export at the nearest
+   * {@linkplain #SIZE_BUCKETS_INIT_PARAM size bucket} when configured.
+   * Fails immediately, without resolving the diagram, while backing-off from a recent failure of the same export.
+   */
+  public static DiaExport exportDiagram(
+      ServletContext servletContext,
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    List<Object> key = Arrays.asList(pageRef, width, height, PNG_EXTENSION);
+    failedExports.check(key, fileMetadataCache);
+    DiaExport export;
+    try {
+      export = exportResampled(pageRef, width, height, store);
+    } catch (IOException e) {
+      recordFailure(key, pageRef, e);
+      throw e;
+    }
+    failedExports.succeeded(key);
+    return export;
+  }
+
+  private static DiaExport exportResampled(
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    int bucket = getSizeBucket(pageRef, width, height);
+    if (bucket > 0) {
+      DiaExport bucketExport = exportDiagram(pageRef, bucket, null, store);
+      if (width != null && width == bucket && height == null) {
+        return bucketExport;
+      }
+      return downscaleDiagram(pageRef, width, height, store, bucketExport);
+    }
+    return exportDiagram(pageRef, width, height, store);
+  }
+
+  /**
+   * Exports the diagram at the given size directly by Dia.
+   */
+  public static DiaExport exportDiagram(
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    return exportDiagram(pageRef, width, height, PNG_EXTENSION, store);
+  }
+
+  /**
+   * Exports the diagram at the given size directly by Dia.
+   *
+   * @deprecated  Please use {@link #exportDiagram(com.semanticcms.core.model.PageRef, java.lang.Integer, java.lang.Integer, com.semanticcms.dia.servlet.impl.ExportStore)}
+   *              with the {@linkplain #getExportStore(javax.servlet.ServletContext) store of the context}.
+   */
+  @Deprecated
+  public static DiaExport exportDiagram(
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      File tmpDir
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    return exportDiagram(pageRef, width, height, new DirectoryExportStore(new File(tmpDir, TEMP_SUBDIR)));
+  }
+
+  /**
+   * Exports the diagram as SVG directly by Dia, along with its {@linkplain #GZIP_EXTENSION precompressed variant}.
+   * The width and height of the export are those of its view box.
+   */
+  public static DiaExport exportSvg(
+      PageRef pageRef,
+      ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    return exportDiagram(pageRef, null, null, SVG_EXTENSION, store);
+  }
+
+  /**
+   * Exports the diagram as {@link #PNG_EXTENSION} or {@link #SVG_EXTENSION}, the SVG having no size.
+   */
+  private static DiaExport export(
+      ServletContext servletContext,
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      String extension,
+      ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    DiaExport export;
+    if (SVG_EXTENSION.equals(extension)) {
+      export = exportSvg(pageRef, store);
+    } else {
+      export = exportDiagram(servletContext, pageRef, width, height, store);
+    }
+    previousExports.put(Arrays.asList(pageRef, width, height, extension), export);
+    return export;
+  }
+
+  /**
+   * Exports the diagram as {@link #PNG_EXTENSION} or {@link #SVG_EXTENSION}, the SVG having no size.
+   * When the diagram has been modified within the {@linkplain #MAX_STALE_INIT_PARAM configured number of seconds},
+   * its previous export is returned immediately while it is re-exported in the background.
+   *
+   * Fails immediately, without resolving the diagram, while backing-off from a recent failure of the same export.
+   *
+   * @return  the export, which is {@linkplain DiaExport#isStale() stale} when of a previous version of the diagram
+   */
+  public static DiaExport exportOrStale(
+      ServletContext servletContext,
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      String extension,
+      ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    List<Object> key = Arrays.asList(pageRef, width, height, extension);
+    failedExports.check(key, fileMetadataCache);
+    DiaExport export;
+    try {
+      export = exportOrStale(servletContext, pageRef, width, height, extension, store, key);
+    } catch (IOException e) {
+      recordFailure(key, pageRef, e);
+      throw e;
+    }
+    failedExports.succeeded(key);
+    return export;
+  }
+
+  private static DiaExport exportOrStale(
+      ServletContext servletContext,
+      PageRef pageRef,
+      Integer width,
+      Integer height,
+      String extension,
+      ExportStore store,
+      List<Object> key
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    int maxStale = getIntInitParameter(servletContext, MAX_STALE_INIT_PARAM, 0);
+    if (maxStale > 0) {
+      DiaExport previous = previousExports.get(key);
+      if (previous != null) {
+        File diaFile = getResourceFile(pageRef);
+        long diaLastModified = getLastModified(pageRef, diaFile);
+        File tmpFile = getTmpFile(
+            ContentHash.getHash(diaFile, diaLastModified, fileMetadataCache),
+            width,
+            height,
+            extension,
+            store
+        );
+        if (
+            // Not already up-to-date
+            !tmpFile.equals(previous.getTmpFile())
+                && fileMetadataCache.lastModified(tmpFile) == 0
+                // Modified recently enough
+                && System.currentTimeMillis() - diaLastModified <= maxStale * 1000L
+                // Previous still available
+                && fileMetadataCache.lastModified(previous.getTmpFile()) != 0
+        ) {
+          exportInBackground(
+              servletContext,
+              pageRef,
+              key,
+              () -> export(servletContext, pageRef, width, height, extension, store)
+          );
+          return new DiaExport(previous.getTmpFile(), previous.getWidth(), previous.getHeight(), true);
+        }
+      }
+    }
+    return export(servletContext, pageRef, width, height, extension, store);
+  }
+
+  /**
+   * The maximum number of failed exports remembered.
+   */
+  private static final int MAX_FAILED_EXPORTS = 10000;
+
+  /**
+   * Exports that recently failed, by diagram, size, and format.
+   */
+  private static final NegativeCache<List<Object>> failedExports = new NegativeCache<>(MAX_FAILED_EXPORTS);
+
+  /**
+   * Records the failure of an export, resolving the diagram again only after a failure.
+   *
+   * @param  key  the diagram, size, and format of the export
+   */
+  private static void recordFailure(List<Object> key, PageRef pageRef, IOException e) {
+    if (e instanceof ExportRejectedException) {
+      // Not a failure of the diagram
+      return;
+    }
+    if (!(e instanceof FileNotFoundException)) {
+      try {
+        File diaFile = getResourceFile(pageRef);
+        failedExports.failed(key, diaFile, getLastModified(pageRef, diaFile), e);
+        return;
+      } catch (IOException resolveError) {
+        // Treated as missing
+      }
+    }
+    failedExports.failed(key, null, 0, e);
+  }
+
+  /**
+   * Exports the diagram directly by Dia, failing immediately without resolving the diagram or running Dia while
+   * backing-off from a recent failure of the same diagram version.
+   */
+  private static DiaExport exportDiagram(
+      PageRef pageRef,
+      final Integer width,
+      final Integer height,
+      final String extension,
+      final ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    List<Object> key = Arrays.asList(pageRef, width, height, extension);
+    failedExports.check(key, fileMetadataCache);
+    File diaFile;
+    long lastModified;
+    try {
+      diaFile = getResourceFile(pageRef);
+      lastModified = getLastModified(pageRef, diaFile);
+    } catch (FileNotFoundException e) {
+      failedExports.failed(key, null, 0, e);
+      throw e;
+    }
+    DiaExport export;
+    try {
+      export = exportDiagram(diaFile, lastModified, width, height, extension, store);
+    } catch (ExportRejectedException e) {
+      // Not a failure of the diagram
+      throw e;
+    } catch (IOException e) {
+      failedExports.failed(key, diaFile, lastModified, e);
+      throw e;
+    }
+    failedExports.succeeded(key);
+    return export;
+  }
+
+  private static DiaExport exportDiagram(
+      final File diaFile,
+      long lastModified,
+      final Integer width,
+      final Integer height,
+      final String extension,
+      final ExportStore store
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    final File tmpFile = getTmpFile(
+        ContentHash.getHash(diaFile, lastModified, fileMetadataCache),
+        width,
+        height,
+        extension,
+        store
+    );
+    // Export when missing, an existing export is always up-to-date since named by the diagram contents
+    try {
+      exportConcurrencyLimiter.executeSerialized(
+          tmpFile,
+          () -> {
+            if (fileMetadataCache.lastModified(tmpFile) == 0) {
+              if (store.create(tmpFile, scratchFile -> exportDia(diaFile, scratchFile, width, height, extension))) {
+                exportCache.remove(tmpFile);
+              }
+              fileMetadataCache.invalidate(tmpFile);
+            }
+            if (SVG_EXTENSION.equals(extension)) {
+              // Also recreated when only the precompressed variant has been removed
+              writeGzip(tmpFile, store);
+            }
+            return null;
+          }
+      );
+    } catch (ExecutionException e) {
+      // Maintain expected exception types while not losing stack trace
+      ExecutionExceptions.wrapAndThrowWithTemplate(e, FileNotFoundException.class, (template, cause) -> {
+        FileNotFoundException fnf = new FileNotFoundException(template.getMessage());
+        fnf.initCause(cause);
+        return fnf;
+      });
+      ExecutionExceptions.wrapAndThrowWithTemplate(e, ExportRejectedException.class, (template, cause) -> {
+        ExportRejectedException rejected = new ExportRejectedException(template.getMessage());
+        rejected.initCause(cause);
+        return rejected;
+      });
+      ExecutionExceptions.wrapAndThrow(e, IOException.class, IOException::new);
+      throw new WrappedException(e);
+    }
+    accessed(tmpFile);
+    // Get actual dimensions
+    Dimension size = SVG_EXTENSION.equals(extension) ? getSvgSize(tmpFile) : ImageSizeCache.getImageSize(tmpFile);
+
+    return new DiaExport(
+        tmpFile,
+        size.width,
+        size.height
+    );
   }
 
-  private static final String LINUX_DIA_PATH = "/usr/bin/dia";
-
-  private static final String WINDOWS_DIA_PATH = "C:\\Program Files (x86)\\Dia\\bin\\dia.exe";
-
-  // This was used for opening the diagram, moved to semanticcms-openfile-servlet to avoid dependency.
-  // private static final String WINDOWS_DIAW_PATH = "C:\\Program Files (x86)\\Dia\\bin\\diaw.exe";
-
-  private static class TempDirLock {
-    private TempDirLock() {
-      // Empty lock class to help heap profile
+  /**
+   * Exports a diagram, as part of a batch when {@linkplain #BATCH_WINDOW_INIT_PARAM batching is enabled}.
+   */
+  private static void exportDia(
+      File diaFile,
+      File exportFile,
+      Integer width,
+      Integer height,
+      String extension
+  ) throws InterruptedException, IOException {
+    ExportBatcher batcher = exportBatcher;
+    if (batcher == null) {
+      runDia(diaFile, exportFile, width, height, extension);
+    } else {
+      batcher.export(diaFile, exportFile, width, height, extension);
     }
   }
 
-  private static final TempDirLock tempDirLock = new TempDirLock();
-  private static final String TEMP_SUBDIR = DiaExport.class.getName();
-
-  private static final String MISSING_IMAGE_PATH = "/semanticcms-dia-servlet/images/broken-chain-1164481-640x480.jpg";
-  private static final int MISSING_IMAGE_WIDTH = 640;
-  private static final int MISSING_IMAGE_HEIGHT = 480;
-
-  public static final char SIZE_SEPARATOR = '-';
-  public static final char EMPTY_SIZE = '_';
-  public static final char DIMENSION_SEPARATOR = 'x';
-  public static final String PNG_EXTENSION = ".png";
-
   /**
-   * The request key used to ensure per-request unique element IDs.
+   * Gets the Dia size parameter for scaling.
+   *
+   * @return  the size or {@code null} to not scale
    */
-  private static final ScopeEE.Request.Attribute<Sequence> ID_SEQUENCE_REQUEST_ATTRIBUTE =
-      ScopeEE.REQUEST.attribute(DiaImpl.class.getName() + ".idSequence");
+  private static String getSizeParam(Integer width, Integer height) {
+    if (width == null) {
+      if (height == null) {
+        return null;
+      } else {
+        return "x" + height;
+      }
+    } else {
+      if (height == null) {
+        return width + "x";
+      } else {
+        return width + "x" + height;
+      }
+    }
+  }
 
   /**
-   * The alt link ID prefix.
+   * Gets the line Dia writes to standard error on exporting a diagram, or {@code null} when the output of Dia is
+   * not checked.
    */
-  private static final String ALT_LINK_ID_PREFIX = "semanticcms-dia-servlet-alt-pixel-ratio-";
+  private static String getNormalOutput(File diaFile, File exportFile) throws IOException {
+    // Dia does not set non-zero exit value, instead, it writes both errors and normal output to stderr
+    // (Dia version 0.97.2, compiled 23:51:04 Apr 13 2012)
+    // If any one line matches the expected line, then it is OK
+    // other lines include stuff like: Xlib:  extension "RANDR" missing on display ":0".
+    return isWindows() ? null : (diaFile.getCanonicalPath() + " --> " + exportFile.getCanonicalPath());
+  }
 
   /**
-   * The default width when neither width nor height provided.
+   * Runs a Dia process, limited by the {@linkplain #exportBulkhead bulkhead}.
+   *
+   * @param  numDiagrams  the number of diagrams exported, each allowed the full {@linkplain #EXPORT_TIMEOUT_INIT_PARAM
+   *                      time limit}, when limited
+   *
+   * @return  the expected lines found
    */
-  private static final int DEFAULT_WIDTH = 200;
+  private static Set<String> runDiaProcess(
+      String[] command,
+      Set<String> expectedLines,
+      int numDiagrams
+  ) throws InterruptedException, IOException {
+    ExportBulkhead bulkhead = exportBulkhead;
+    try {
+      bulkhead.acquire();
+    } catch (ExportRejectedException e) {
+      rejectedExports.incrementAndGet();
+      throw e;
+    }
+    try {
+      return DiaProcess.run(command, expectedLines, exportTimeoutMillis * numDiagrams);
+    } finally {
+      bulkhead.release();
+    }
+  }
 
   /**
-   * The supported pixel densities, these must be ordered from lowest to highest.  The first is the default.
+   * Runs Dia to export a diagram.
    */
-  private static final int[] PIXEL_DENSITIES = {
-      1,
-      2,
-      3,
-      4
-  };
-
-  private static boolean isWindows() {
-    String osName = System.getProperty("os.name");
-    return osName != null && osName.toLowerCase(Locale.ROOT).contains("windows");
+  private static void runDia(
+      File diaFile,
+      File exportFile,
+      Integer width,
+      Integer height,
+      String extension
+  ) throws InterruptedException, IOException {
+    final String sizeParam = getSizeParam(width, height);
+    // Build the command
+    final String diaExePath = getDiaExportPath();
+    final String filter = extension.substring(1);
+    final String[] command;
+    if (sizeParam == null) {
+      command = new String[]{
+          diaExePath,
+          "--export=" + exportFile.getCanonicalPath(),
+          "--filter=" + filter,
+          "--log-to-stderr",
+          diaFile.getCanonicalPath()
+      };
+    } else {
+      command = new String[]{
+          diaExePath,
+          "--export=" + exportFile.getCanonicalPath(),
+          "--filter=" + filter,
+          "--size=" + sizeParam,
+          "--log-to-stderr",
+          diaFile.getCanonicalPath()
+      };
+    }
+    // Export using dia
+    String normalOutput = getNormalOutput(diaFile, exportFile);
+    runDiaProcess(
+        command,
+        normalOutput == null ? Collections.emptySet() : Collections.singleton(normalOutput),
+        1
+    );
   }
 
-  private static String getDiaExportPath() {
-    if (isWindows()) {
-      return WINDOWS_DIA_PATH;
-    } else {
-      return LINUX_DIA_PATH;
+  /**
+   * Runs Dia once to export a batch of diagrams into a temporary directory, then moves each export into place.
+   * Dia names each export by the name of its diagram, so the diagrams of a batch must have distinct names.
+   *
+   * @see  ExportBatcher
+   */
+  private static Map<File, IOException> runDiaBatch(
+      Integer width,
+      Integer height,
+      String extension,
+      Map<File, File> exports
+  ) throws InterruptedException, IOException {
+    final String sizeParam = getSizeParam(width, height);
+    File outDir = Files.createTempDirectory(DiaImpl.class.getName() + "-batch-").toFile();
+    try {
+      // Build the command
+      final String diaExePath = getDiaExportPath();
+      List<String> command = new ArrayList<>(exports.size() + 7);
+      command.add(diaExePath);
+      command.add("--filter=" + extension.substring(1));
+      if (sizeParam != null) {
+        command.add("--size=" + sizeParam);
+      }
+      command.add("-O");
+      command.add(outDir.getCanonicalPath());
+      command.add("--log-to-stderr");
+      Map<File, File> outFiles = new LinkedHashMap<>();
+      Map<File, String> normalOutputs = new LinkedHashMap<>();
+      for (Map.Entry<File, File> entry : exports.entrySet()) {
+        File exportFile = entry.getKey();
+        File diaFile = entry.getValue();
+        String name = diaFile.getName();
+        int dotPos = name.lastIndexOf('.');
+        File outFile = new File(outDir, (dotPos == -1 ? name : name.substring(0, dotPos)) + extension);
+        outFiles.put(exportFile, outFile);
+        String normalOutput = getNormalOutput(diaFile, outFile);
+        if (normalOutput != null) {
+          normalOutputs.put(exportFile, normalOutput);
+        }
+        command.add(diaFile.getCanonicalPath());
+      }
+      // Export using dia
+      Set<String> found = runDiaProcess(
+          command.toArray(new String[command.size()]),
+          new HashSet<>(normalOutputs.values()),
+          exports.size()
+      );
+      // Move each export into place
+      Map<File, IOException> failures = new HashMap<>();
+      for (Map.Entry<File, File> entry : outFiles.entrySet()) {
+        File exportFile = entry.getKey();
+        File outFile = entry.getValue();
+        String normalOutput = normalOutputs.get(exportFile);
+        if ((normalOutput != null && !found.contains(normalOutput)) || !outFile.exists()) {
+          failures.put(exportFile, new IOException(diaExePath + ": diagram not exported: " + exports.get(exportFile)));
+        } else {
+          try {
+            Files.move(outFile.toPath(), exportFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          } catch (IOException e) {
+            failures.put(exportFile, e);
+          }
+        }
+      }
+      return failures;
+    } finally {
+      File[] remaining = outDir.listFiles();
+      if (remaining != null) {
+        for (File file : remaining) {
+          Files.deleteIfExists(file.toPath());
+        }
+      }
+      Files.deleteIfExists(outDir.toPath());
     }
   }
 
-  /* This was used for opening the diagram, moved to semanticcms-openfile-servlet to avoid dependency.
-  public static String getDiaOpenPath() {
-    if (isWindows()) {
-      return WINDOWS_DIAW_PATH;
-    } else {
-      return LINUX_DIA_PATH;
+  /**
+   * Writes the precompressed variant of an export, when not already stored.
+   */
+  private static void writeGzip(File tmpFile, ExportStore store) throws InterruptedException, IOException {
+    File gzipFile = new File(tmpFile.getPath() + GZIP_EXTENSION);
+    if (fileMetadataCache.lastModified(gzipFile) == 0) {
+      if (store.create(gzipFile, scratchFile -> {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(scratchFile))) {
+          Files.copy(tmpFile.toPath(), out);
+        }
+      })) {
+        exportCache.remove(gzipFile);
+      }
+      fileMetadataCache.invalidate(gzipFile);
     }
   }
+
+  /**
+   * Gets the size of an SVG export from the {@code viewBox} of its root element, only reading up to the root element.
    */
+  private static Dimension getSvgSize(File svgFile) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // Dia includes a DOCTYPE, which must not be fetched
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try (InputStream in = new FileInputStream(svgFile)) {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+            String viewBox = reader.getAttributeValue(null, "viewBox");
+            if (viewBox == null) {
+              throw new IOException("SVG has no viewBox: " + svgFile);
+            }
+            String[] values = viewBox.trim().split("[\\s,]+");
+            if (values.length != 4) {
+              throw new IOException("Unexpected SVG viewBox: " + viewBox);
+            }
+            try {
+              return new Dimension(
+                  Math.max(1, (int) Math.round(Double.parseDouble(values[2]))),
+                  Math.max(1, (int) Math.round(Double.parseDouble(values[3])))
+              );
+            } catch (NumberFormatException e) {
+              throw new IOException("Unexpected SVG viewBox: " + viewBox, e);
+            }
+          }
+        }
+        throw new IOException("SVG has no root element: " + svgFile);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
 
   /**
-   * Make sure each diagram and scaling is only exported once when under concurrent access.
+   * Gets the size the diagram will be exported at, computed from the extents in the diagram file without running Dia.
+   * This matches the aspect ratio of the export, but may differ from the actual export by a pixel or so.
+   *
+   * @param  width  the requested width or {@code null} when not provided
+   * @param  height  the requested height or {@code null} when not provided, at least one of width or height must be
+   *                 provided
+   *
+   * @return  the size or {@code null} when the diagram has no objects
    */
-  private static final KeyedConcurrencyReducer<File, Void> exportConcurrencyLimiter = new KeyedConcurrencyReducer<>();
+  public static Dimension getExportSize(
+      PageRef pageRef,
+      Integer width,
+      Integer height
+  ) throws FileNotFoundException, IOException {
+    if (width == null && height == null) {
+      throw new IllegalArgumentException("Neither width nor height provided");
+    }
+    File diaFile = getResourceFile(pageRef);
+    long lastModified = getLastModified(pageRef, diaFile);
+    DiaExtents extents = DiaExtents.getExtents(diaFile, lastModified);
+    if (extents == null) {
+      return null;
+    }
+    int[] size = extents.getScaledSize(width, height);
+    return new Dimension(size[0], size[1]);
+  }
 
-  public static DiaExport exportDiagram(
+  /**
+   * Creates an export by downscaling a larger export of the same diagram in the JVM instead of running Dia.
+   * The temp file is the same as would be used by {@link #exportDiagram(com.semanticcms.core.model.PageRef, java.lang.Integer, java.lang.Integer, com.semanticcms.dia.servlet.impl.ExportStore)}.
+   *
+   * @param  source  the export to resample, which must be up-to-date with the diagram
+   */
+  private static DiaExport downscaleDiagram(
       PageRef pageRef,
       final Integer width,
       final Integer height,
-      File tmpDir
-  ) throws InterruptedException, FileNotFoundException, IOException {
-    final File diaFile = pageRef.getResourceFile(true, true);
-
-    String diaPath = pageRef.getPath();
-    // Strip extension if matches expected value
-    if (diaPath.toLowerCase(Locale.ROOT).endsWith(Dia.DOT_EXTENSION)) {
-      diaPath = diaPath.substring(0, diaPath.length() - Dia.DOT_EXTENSION.length());
-    }
-    // Generate the temp filename
-    final File tmpFile;
-    synchronized (tempDirLock) {
-      tmpFile = new File(
-          tmpDir,
-          TEMP_SUBDIR
-              + pageRef.getBookPrefix().replace('/', File.separatorChar)
-              + diaPath.replace('/', File.separatorChar)
-              + "-"
-              + (width == null ? "_" : width.toString())
-              + "x"
-              + (height == null ? "_" : height.toString())
-              + PNG_EXTENSION
-      );
-      // Make temp directory if needed (and all parents)
-      tmpDir = tmpFile.getParentFile();
-      if (!tmpDir.exists()) {
-        Files.createDirectories(tmpDir.toPath());
-      }
-    }
-    // Re-export when missing or timestamps indicate needs recreated
+      ExportStore store,
+      final DiaExport source
+  ) throws InterruptedException, IOException {
+    final File tmpFile = getTmpFile(getContentHash(pageRef), width, height, PNG_EXTENSION, store);
+    // Re-scale when missing, an existing export is always up-to-date since named by the diagram contents
     try {
       exportConcurrencyLimiter.executeSerialized(
           tmpFile,
           () -> {
-            if (!tmpFile.exists() || diaFile.lastModified() >= tmpFile.lastModified()) {
-              // Determine size for scaling
-              final String sizeParam;
-              if (width == null) {
-                if (height == null) {
-                  sizeParam = null;
-                } else {
-                  sizeParam = "x" + height;
-                }
-              } else {
-                if (height == null) {
-                  sizeParam = width + "x";
-                } else {
-                  sizeParam = width + "x" + height;
-                }
-              }
-              // Build the command
-              final String diaExePath = getDiaExportPath();
-              final String[] command;
-              if (sizeParam == null) {
-                command = new String[]{
-                    diaExePath,
-                    "--export=" + tmpFile.getCanonicalPath(),
-                    "--filter=png",
-                    "--log-to-stderr",
-                    diaFile.getCanonicalPath()
-                };
-              } else {
-                command = new String[]{
-                    diaExePath,
-                    "--export=" + tmpFile.getCanonicalPath(),
-                    "--filter=png",
-                    "--size=" + sizeParam,
-                    "--log-to-stderr",
-                    diaFile.getCanonicalPath()
-                };
-              }
-              // Export using dia
-              ProcessResult result = ProcessResult.exec(command);
-              int exitVal = result.getExitVal();
-              if (exitVal != 0) {
-                throw new IOException(diaExePath + ": non-zero exit value: " + exitVal);
-              }
-              if (!isWindows()) {
-                // Dia does not set non-zero exit value, instead, it writes both errors and normal output to stderr
-                // (Dia version 0.97.2, compiled 23:51:04 Apr 13 2012)
-                String normalOutput = diaFile.getCanonicalPath() + " --> " + tmpFile.getCanonicalPath();
-                // Read the standard error, if any one line matches the expected line, then it is OK
-                // other lines include stuff like: Xlib:  extension "RANDR" missing on display ":0".
-                boolean foundNormalOutput = false;
-                String stderr = result.getStderr();
-                try (BufferedReader errIn = new BufferedReader(new StringReader(stderr))) {
-                  String line;
-                  while ((line = errIn.readLine()) != null) {
-                    if (line.equals(normalOutput)) {
-                      foundNormalOutput = true;
-                      break;
-                    }
-                  }
-                }
-                if (!foundNormalOutput) {
-                  throw new IOException(diaExePath + ": " + stderr);
-                }
+            if (fileMetadataCache.lastModified(tmpFile) == 0) {
+              if (store.create(
+                  tmpFile,
+                  scratchFile -> ImageResampler.resample(source.getTmpFile(), scratchFile, width, height)
+              )) {
+                exportCache.remove(tmpFile);
               }
+              fileMetadataCache.invalidate(tmpFile);
             }
             return null;
           }
       );
     } catch (ExecutionException e) {
       // Maintain expected exception types while not losing stack trace
-      ExecutionExceptions.wrapAndThrowWithTemplate(e, FileNotFoundException.class, (template, cause) -> {
-        FileNotFoundException fnf = new FileNotFoundException(template.getMessage());
-        fnf.initCause(cause);
-        return fnf;
-      });
       ExecutionExceptions.wrapAndThrow(e, IOException.class, IOException::new);
       throw new WrappedException(e);
     }
+    accessed(tmpFile);
     // Get actual dimensions
     Dimension pngSize = ImageSizeCache.getImageSize(tmpFile);
 
@@ -274,13 +1767,21 @@ public final class DiaImpl {
     );
   }
 
+  /**
+   * Builds the URL path to an export.
+   *
+   * @param  pixelDensity  the pixel density, {@linkplain #limitPixelDensity(int, int, int) limited} to the sizes
+   *                       accepted by {@link DiaExportServlet}, or {@code 0} for a
+   *                       {@linkplain #AUTO_DENSITY_SUFFIX density-neutral URL}
+   */
   private static String buildUrlPath(
       HttpServletRequest request,
       PageRef pageRef,
       int width,
       int height,
       int pixelDensity,
-      DiaExport export
+      String extension,
+      long lastModified
   ) throws ServletException {
     String diaPath = pageRef.getPath();
     // Strip extension
@@ -295,29 +1796,249 @@ public final class DiaImpl {
         .append(pageRef.getBookPrefix())
         .append(diaPath)
         .append(SIZE_SEPARATOR);
+    // Density-neutral URL is at the lowest pixel density
+    int multiplier = pixelDensity == 0 ? PIXEL_DENSITIES[0] : limitPixelDensity(width, height, pixelDensity);
     if (width == 0) {
       urlPath.append(EMPTY_SIZE);
     } else {
-      urlPath.append(width * pixelDensity);
+      urlPath.append(width * multiplier);
     }
     urlPath.append(DIMENSION_SEPARATOR);
     if (height == 0) {
       urlPath.append(EMPTY_SIZE);
     } else {
-      urlPath.append(height * pixelDensity);
+      urlPath.append(height * multiplier);
     }
-    urlPath.append(PNG_EXTENSION);
+    if (pixelDensity == 0) {
+      urlPath.append(AUTO_DENSITY_SUFFIX);
+    }
+    urlPath.append(extension);
     // Check for header disabling auto last modified
     if (!"false".equalsIgnoreCase(request.getHeader(LastModifiedServlet.LAST_MODIFIED_HEADER_NAME))) {
       urlPath
           .append('?')
           .append(LastModifiedServlet.LAST_MODIFIED_PARAMETER_NAME)
           .append('=')
-          .append(LastModifiedServlet.encodeLastModified(export.getTmpFile().lastModified()));
+          .append(LastModifiedServlet.encodeLastModified(lastModified));
     }
     return urlPath.toString();
   }
 
+  /**
+   * Calls all the tasks, concurrently using the request's recommended executor when there is a request.
+   */
+  private static <T> List<T> callAll(
+      ServletContext servletContext,
+      HttpServletRequest request,
+      List<Callable<T>> tasks
+  ) throws InterruptedException, ExecutionException {
+    if (request != null) {
+      return ConcurrencyCoordinator.getRecommendedExecutor(servletContext, request).callAll(tasks);
+    }
+    List<T> results = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      try {
+        results.add(task.call());
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new ExecutionException(e);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Exports the diagram in each pixel density, in the same order as {@link #PIXEL_DENSITIES}.
+   *
+   * @param  request  the current request, or {@code null} to export sequentially outside of any request
+   * @param  width  the width at the lowest pixel density or {@code 0} when not provided
+   * @param  height  the height at the lowest pixel density or {@code 0} when not provided
+   */
+  private static List<DiaExport> exportPixelDensities(
+      final ServletContext servletContext,
+      HttpServletRequest request,
+      final PageRef pageRef,
+      final int width,
+      final int height,
+      final ExportStore store
+  ) throws InterruptedException, ExecutionException, IOException {
+    if (isDownscale(servletContext) && PIXEL_DENSITIES.length > 1) {
+      // Only the highest pixel density is exported by Dia, others scaled down from it
+      final int maxIndex = PIXEL_DENSITIES.length - 1;
+      final int maxPixelDensity = limitPixelDensity(width, height, PIXEL_DENSITIES[maxIndex]);
+      final DiaExport maxExport = exportDiagram(
+          servletContext,
+          pageRef,
+          width == 0 ? null : (width * maxPixelDensity),
+          height == 0 ? null : (height * maxPixelDensity),
+          store
+      );
+      List<Callable<DiaExport>> tasks = new ArrayList<>(maxIndex);
+      for (int i = 0; i < maxIndex; i++) {
+        final int pixelDensity = limitPixelDensity(width, height, PIXEL_DENSITIES[i]);
+        tasks.add(
+            () -> downscaleDiagram(
+                pageRef,
+                width == 0 ? null : (width * pixelDensity),
+                height == 0 ? null : (height * pixelDensity),
+                store,
+                maxExport
+            )
+        );
+      }
+      List<DiaExport> exports = new ArrayList<>(PIXEL_DENSITIES.length);
+      exports.addAll(callAll(servletContext, request, tasks));
+      exports.add(maxExport);
+      return exports;
+    } else {
+      List<Callable<DiaExport>> tasks = new ArrayList<>(PIXEL_DENSITIES.length);
+      for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
+        final int pixelDensity = limitPixelDensity(width, height, PIXEL_DENSITIES[i]);
+        tasks.add(
+            () -> exportDiagram(
+                servletContext,
+                pageRef,
+                width == 0 ? null : (width * pixelDensity),
+                height == 0 ? null : (height * pixelDensity),
+                store
+            )
+        );
+      }
+      return callAll(servletContext, request, tasks);
+    }
+  }
+
+  /**
+   * Exports the diagram as it would be written with the given size, without writing any HTML.  The diagram is
+   * exported sequentially in each pixel density or as SVG when {@linkplain #SVG_INIT_PARAM enabled by default}.
+   *
+   * @param  width  the width or {@code 0} when not provided
+   * @param  height  the height or {@code 0} when not provided
+   */
+  public static void prewarmDiagram(
+      ServletContext servletContext,
+      PageRef pageRef,
+      int width,
+      int height
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    prewarmDiagram(servletContext, pageRef, width, height, null);
+  }
+
+  /**
+   * Exports the diagram as it would be written with the given size, without writing any HTML.
+   *
+   * @param  width  the width or {@code 0} when not provided
+   * @param  height  the height or {@code 0} when not provided
+   * @param  svg  Exports as SVG instead of PNG, or {@code null} to use the {@linkplain #SVG_INIT_PARAM default}.
+   */
+  public static void prewarmDiagram(
+      ServletContext servletContext,
+      PageRef pageRef,
+      int width,
+      int height,
+      Boolean svg
+  ) throws InterruptedException, FileNotFoundException, IOException {
+    // Use default width when neither provided
+    if (width == 0 && height == 0) {
+      width = DEFAULT_WIDTH;
+    }
+    ExportStore store = getExportStore(servletContext);
+    if (svg != null ? svg : isSvg(servletContext)) {
+      exportSvg(pageRef, store);
+    } else {
+      try {
+        exportPixelDensities(servletContext, null, pageRef, width, height, store);
+      } catch (ExecutionException e) {
+        // Maintain expected exception types while not losing stack trace
+        ExecutionExceptions.wrapAndThrowWithTemplate(e, FileNotFoundException.class, (template, cause) -> {
+          FileNotFoundException fnf = new FileNotFoundException(template.getMessage());
+          fnf.initCause(cause);
+          return fnf;
+        });
+        ExecutionExceptions.wrapAndThrow(e, IOException.class, IOException::new);
+        throw new WrappedException(e);
+      }
+    }
+  }
+
+  /**
+   * Performs the exports for {@link #getRequestExports(javax.servlet.http.HttpServletRequest, java.util.List, com.semanticcms.dia.servlet.impl.DiaImpl.RequestExports)}.
+   */
+  @FunctionalInterface
+  private interface RequestExports {
+    List<DiaExport> export() throws InterruptedException, ExecutionException, IOException;
+  }
+
+  /**
+   * Gets the exports of a diagram, only exporting once per request.
+   *
+   * @param  key  identifies the diagram and size
+   */
+  private static List<DiaExport> getRequestExports(
+      HttpServletRequest request,
+      List<Object> key,
+      RequestExports exports
+  ) throws InterruptedException, ExecutionException, IOException {
+    ConcurrentMap<List<Object>, List<DiaExport>> requestExports = EXPORTS_REQUEST_ATTRIBUTE.context(request)
+        .computeIfAbsent(name -> new ConcurrentHashMap<>());
+    List<DiaExport> result = requestExports.get(key);
+    if (result == null) {
+      result = exports.export();
+      List<DiaExport> existing = requestExports.putIfAbsent(key, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Renders the diagram as a single SVG export.
+   *
+   * @return  {@code false} when the export is {@linkplain ExportRejectedException rejected}, to be rendered as PNG
+   *          without waiting on exports instead
+   */
+  private static boolean writeSvg(
+      ServletContext servletContext,
+      HttpServletRequest request,
+      HttpServletResponse response,
+      AnyPhrasingContent<?, ?> content,
+      Dia dia,
+      PageRef pageRef,
+      int width,
+      int height
+  ) throws InterruptedException, ServletException, IOException {
+    DiaExport export;
+    try {
+      export = getRequestExports(
+          request,
+          Arrays.asList(pageRef, 0, 0, SVG_EXTENSION),
+          () -> Collections.singletonList(exportSvg(pageRef, getExportStore(servletContext)))
+      ).get(0);
+    } catch (ExecutionException e) {
+      // Not thrown by exportSvg
+      throw new ServletException(e);
+    } catch (ExportRejectedException e) {
+      return false;
+    }
+    int[] size = ImageResampler.getTargetSize(
+        export.getWidth(),
+        export.getHeight(),
+        width == 0 ? null : width,
+        height == 0 ? null : height
+    );
+    String urlPath = buildUrlPath(request, pageRef, 0, 0, 1, SVG_EXTENSION, export.getTmpFile().lastModified());
+    content.img()
+        .id(PageIndex.getRefIdInPage(request, dia.getPage(), dia.getId()))
+        .src(response.encodeURL(URIEncoder.encodeURI(urlPath)))
+        .width(size[0])
+        .height(size[1])
+        .alt(dia.getLabel())
+        .__();
+    return true;
+  }
+
   /**
    * Renders the diagram HTML.
    *
@@ -329,13 +2050,37 @@ public final class DiaImpl {
       HttpServletResponse response,
       AnyPhrasingContent<?, ?> content,
       Dia dia
+  ) throws ServletException, IOException {
+    writeDiaImpl(servletContext, request, response, content, dia, null);
+  }
+
+  /**
+   * Renders the diagram HTML.
+   *
+   * @param  content  {@link AnyPhrasingContent} provides {@link AnyIMG}, {@link AnyA}, and {@link AnySCRIPT}.
+   * @param  svg  Writes as SVG instead of PNG exports, or {@code null} to use the {@linkplain #SVG_INIT_PARAM default}.
+   */
+  public static void writeDiaImpl(
+      ServletContext servletContext,
+      HttpServletRequest request,
+      HttpServletResponse response,
+      AnyPhrasingContent<?, ?> content,
+      Dia dia,
+      Boolean svg
   ) throws ServletException, IOException {
     try {
       // Get the current capture state
       final CaptureLevel captureLevel = CaptureLevel.getCaptureLevel(request);
       if (captureLevel.compareTo(CaptureLevel.META) >= 0) {
         final PageRef pageRef = PageRefResolver.getPageRef(servletContext, request, dia.getBook(), dia.getPath());
-        if (captureLevel == CaptureLevel.BODY) {
+        if (captureLevel == CaptureLevel.META) {
+          if (
+              Boolean.parseBoolean(servletContext.getInitParameter(SPECULATIVE_INIT_PARAM))
+                  && pageRef.getResourceFile(false, true) != null
+          ) {
+            exportSpeculatively(servletContext, pageRef, dia.getWidth(), dia.getHeight(), svg);
+          }
+        } else if (captureLevel == CaptureLevel.BODY) {
           // Use default width when neither provided
           int width = dia.getWidth();
           int height = dia.getHeight();
@@ -343,70 +2088,150 @@ public final class DiaImpl {
             width = DEFAULT_WIDTH;
           }
           File resourceFile = pageRef.getResourceFile(false, true);
-          // Scale concurrently for each pixel density
-          List<DiaExport> exports;
+          if (
+              resourceFile != null
+                  && (svg != null ? svg : isSvg(servletContext))
+                  && writeSvg(servletContext, request, response, content, dia, pageRef, width, height)
+          ) {
+            return;
+          }
+          // The size of the img and modified time for each pixel density, null when missing
+          Dimension imgSize;
+          long[] lastModifieds;
           if (resourceFile == null) {
-            exports = null;
+            imgSize = null;
+            lastModifieds = null;
           } else {
-            final File tempDir = ScopeEE.Application.TEMPDIR.context(servletContext).get();
-            final int finalWidth = width;
-            final int finalHeight = height;
-            // TODO: Avoid concurrent tasks when all diagrams are already up-to-date?
-            // TODO: Fetch resource file once when first needed?
-            List<Callable<DiaExport>> tasks = new ArrayList<>(PIXEL_DENSITIES.length);
-            for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
-              final int pixelDensity = PIXEL_DENSITIES[i];
-              tasks.add(
-                  () -> exportDiagram(
-                      pageRef,
-                      finalWidth == 0 ? null : (finalWidth * pixelDensity),
-                      finalHeight == 0 ? null : (finalHeight * pixelDensity),
-                      tempDir
-                  )
-              );
+            imgSize = isLazy(servletContext)
+                ? getExportSize(pageRef, width == 0 ? null : width, height == 0 ? null : height)
+                : null;
+            lastModifieds = new long[PIXEL_DENSITIES.length];
+            boolean exported = false;
+            if (imgSize == null) {
+              try {
+                if (isClientHints(servletContext)) {
+                  // Only the lowest pixel density is needed for its size, others exported when requested
+                  final ExportStore store = getExportStore(servletContext);
+                  final Integer exportWidth = width == 0 ? null : (width * PIXEL_DENSITIES[0]);
+                  final Integer exportHeight = height == 0 ? null : (height * PIXEL_DENSITIES[0]);
+                  List<DiaExport> exports;
+                  try {
+                    exports = getRequestExports(
+                        request,
+                        Arrays.asList(pageRef, width, height, PNG_EXTENSION, PIXEL_DENSITIES[0]),
+                        () -> Collections.singletonList(
+                            exportDiagram(servletContext, pageRef, exportWidth, exportHeight, store)
+                        )
+                    );
+                  } catch (ExecutionException e) {
+                    // Not thrown by exportDiagram
+                    throw new ServletException(e);
+                  }
+                  DiaExport export = exports.get(0);
+                  imgSize = new Dimension(
+                      export.getWidth() / PIXEL_DENSITIES[0],
+                      export.getHeight() / PIXEL_DENSITIES[0]
+                  );
+                } else {
+                  // Scale concurrently for each pixel density
+                  final ExportStore store = getExportStore(servletContext);
+                  // TODO: Avoid concurrent tasks when all diagrams are already up-to-date?
+                  // TODO: Fetch resource file once when first needed?
+                  List<DiaExport> exports;
+                  try {
+                    final int exportWidth = width;
+                    final int exportHeight = height;
+                    exports = getRequestExports(
+                        request,
+                        Arrays.asList(pageRef, width, height, PNG_EXTENSION),
+                        () -> exportPixelDensities(servletContext, request, pageRef, exportWidth, exportHeight, store)
+                    );
+                  } catch (ExecutionException e) {
+                    // Maintain expected exception types while not losing stack trace
+                    ExecutionExceptions.wrapAndThrowWithTemplate(
+                        e,
+                        ExportRejectedException.class,
+                        (template, cause) -> {
+                          ExportRejectedException rejected = new ExportRejectedException(template.getMessage());
+                          rejected.initCause(cause);
+                          return rejected;
+                        }
+                    );
+                    ExecutionExceptions.wrapAndThrow(e, IOException.class, IOException::new);
+                    throw new ServletException(e);
+                  }
+                  // Get the thumbnail image in default pixel density
+                  DiaExport export = exports.get(0);
+                  imgSize = new Dimension(
+                      export.getWidth() / PIXEL_DENSITIES[0],
+                      export.getHeight() / PIXEL_DENSITIES[0]
+                  );
+                  for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
+                    lastModifieds[i] = exports.get(i).getTmpFile().lastModified();
+                  }
+                  exported = true;
+                }
+              } catch (ExportRejectedException e) {
+                // Too many exports to wait for, write as lazy mode does with each export created when requested,
+                // or as missing when the size cannot be determined
+                imgSize = getExportSize(pageRef, width == 0 ? null : width, height == 0 ? null : height);
+              }
             }
-            try {
-              exports = ConcurrencyCoordinator.getRecommendedExecutor(servletContext, request).callAll(tasks);
-            } catch (ExecutionException e) {
-              // Maintain expected exception types while not losing stack trace
-              ExecutionExceptions.wrapAndThrow(e, IOException.class, IOException::new);
-              throw new ServletException(e);
+            if (imgSize != null && !exported) {
+              // Each pixel density exported when first requested
+              Arrays.fill(lastModifieds, getLastModified(pageRef, getResourceFile(pageRef)));
             }
           }
-          // Get the thumbnail image in default pixel density
-          DiaExport export = exports == null ? null : exports.get(0);
           // Find id sequence
           Sequence idSequence = ID_SEQUENCE_REQUEST_ATTRIBUTE.context(request)
               .computeIfAbsent(name -> new UnsynchronizedSequence());
           // Write the img tag
           String refId = PageIndex.getRefIdInPage(request, dia.getPage(), dia.getId());
+          final String[] urlPaths = imgSize != null && !isClientHints(servletContext)
+              ? getEncodedUrlPaths(request, pageRef, width, height, lastModifieds)
+              : null;
+          if (imgSize != null && isClientHints(servletContext)) {
+            // The pixel density is chosen by the export servlet, which also requests the hints
+            content.img()
+                .id(refId)
+                .src(response.encodeURL(URIEncoder.encodeURI(
+                    buildUrlPath(request, pageRef, width, height, 0, PNG_EXTENSION, lastModifieds[0])
+                )))
+                .width(imgSize.width)
+                .height(imgSize.height)
+                .alt(dia.getLabel())
+                .__();
+            return;
+          }
+          if (urlPaths != null && isSrcset(servletContext)) {
+            String[] srcsetUrls = new String[PIXEL_DENSITIES.length];
+            for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
+              srcsetUrls[i] = response.encodeURL(urlPaths[i]);
+            }
+            writeSrcsetImg(content, refId, srcsetUrls, imgSize, dia.getLabel());
+            return;
+          }
           final String urlPath;
-          if (export != null) {
-            urlPath = buildUrlPath(
-                request,
-                pageRef,
-                width,
-                height,
-                PIXEL_DENSITIES[0],
-                export
-            );
+          if (urlPaths != null) {
+            urlPath = urlPaths[0];
           } else {
-            urlPath =
+            urlPath = URIEncoder.encodeURI(
                 request.getContextPath()
-                    + MISSING_IMAGE_PATH;
+                    + MISSING_IMAGE_PATH
+            );
           }
           content.img()
               .id(refId)
-              .src(response.encodeURL(URIEncoder.encodeURI(urlPath)))
+              .src(response.encodeURL(urlPath))
               .width(
-                  export != null
-                      ? (export.getWidth() / PIXEL_DENSITIES[0])
+                  imgSize != null
+                      ? imgSize.width
                       : width != 0
                       ? width
                       : (MISSING_IMAGE_WIDTH * height / MISSING_IMAGE_HEIGHT)
               ).height(
-              export != null
-                  ? (export.getHeight() / PIXEL_DENSITIES[0])
+              imgSize != null
+                  ? imgSize.height
                   : height != 0
                   ? height
                   : (MISSING_IMAGE_HEIGHT * width / MISSING_IMAGE_WIDTH)
@@ -418,83 +2243,33 @@ public final class DiaImpl {
           //   encodeTextInXhtmlAttribute(resourceFile.getName(), out);
           // }
 
-          if (export != null && PIXEL_DENSITIES.length > 1) {
+          if (imgSize != null && PIXEL_DENSITIES.length > 1) {
             assert resourceFile != null;
-            assert exports != null;
+            assert urlPaths != null;
             // Write links to the exports for higher pixel densities
             long[] altLinkNums = new long[PIXEL_DENSITIES.length];
             for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
               int pixelDensity = PIXEL_DENSITIES[i];
-              // Get the thumbnail image in alternate pixel density
-              DiaExport altExport = exports.get(i);
               // Write the a tag to additional pixel densities
               final long altLinkNum = idSequence.getNextSequenceValue();
               altLinkNums[i] = altLinkNum;
-              final String altUrlPath = buildUrlPath(
-                  request,
-                  pageRef,
-                  width,
-                  height,
-                  pixelDensity,
-                  altExport
-              );
               content.a()
                   .id(id -> id.append(ALT_LINK_ID_PREFIX).append(Long.toString(altLinkNum)))
                   .style("display:none")
-                  .href(response.encodeURL(URIEncoder.encodeURI(altUrlPath)))
+                  .href(response.encodeURL(urlPaths[i]))
                   .__(a -> a
                       .text('x').text(pixelDensity)
                   );
             }
             // Write script to hide alt links and select best based on device pixel ratio
             try (JavaScriptWriter script = content.script()._c()) {
-              // hide alt links
-              // for (int i=1; i<PIXEL_DENSITIES.length; i++) {
-              //   final long altLinkNum = altLinkNums[i];
-              //   scriptOut
-              //     .write("document.getElementById(\"" + ALT_LINK_ID_PREFIX)
-              //     .write(Long.toString(altLinkNum))
-              //     .write("\").style.display = \"none\";\n");
-              // }
-              // select best based on device pixel ratio
-              script.write("if (window.devicePixelRatio) {\n");
-              // Closure for locally scoped variables
-              script.write("  (function () {\n");
-              // scriptOut.write("  window.alert(\"devicePixelRatio=\" + window.devicePixelRatio);\n");
-              // Function to update src
-              script.write("    function updateImageSrc() {\n");
+              script.write(SCRIPT_START);
               for (int i = PIXEL_DENSITIES.length - 1; i >= 0; i--) {
-                final long altLinkNum = altLinkNums[i];
-                script.write("      ");
-                if (i != (PIXEL_DENSITIES.length - 1)) {
-                  script.write("else ");
-                }
-                if (i > 0) {
-                  script.write("if (window.devicePixelRatio > ");
-                  script.write(Integer.toString(PIXEL_DENSITIES[i - 1]));
-                  script.write(") ");
-                }
-                script.append("{\n"
-                    + "        document.getElementById(").text(refId).append(").src = document.getElementById(\""
-                        + ALT_LINK_ID_PREFIX).append(Long.toString(altLinkNum)).append("\").getAttribute(\"href\");\n"
-                    + "      }\n");
-              }
-              script.write("    }\n"
-                  // Perform initial setup
-                  + "    updateImageSrc();\n");
-              // Change image source when pixel ratio changes
-              script.write("    if (window.matchMedia) {\n");
-              for (int i = 0; i < PIXEL_DENSITIES.length; i++) {
-                int pixelDensity = PIXEL_DENSITIES[i];
-                script.write("      window.matchMedia(\"screen and (max-resolution: ");
-                script.write(Integer.toString(pixelDensity));
-                script.write("dppx)\").addListener(function(e) {\n"
-                    + "        updateImageSrc();\n"
-                    + "      });\n");
+                script.append(SCRIPT_BEFORE_REF_ID[i]).text(refId)
+                    .append(SCRIPT_BEFORE_ALT_LINK_NUM).append(Long.toString(altLinkNums[i]))
+                    .append(SCRIPT_AFTER_ALT_LINK_NUM);
               }
-              script.write("    }\n"
-                  + "  })();\n"
-                  + "}");
+              script.write(SCRIPT_END);
             }
           }
         }
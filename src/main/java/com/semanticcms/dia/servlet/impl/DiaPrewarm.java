@@ -0,0 +1,315 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import com.aoapps.servlet.attribute.ScopeEE;
+import com.semanticcms.core.model.Book;
+import com.semanticcms.core.model.PageRef;
+import com.semanticcms.core.servlet.SemanticCMS;
+import com.semanticcms.dia.model.Dia;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Exports every diagram in all books in the background after startup, so the first readers of each page do not wait
+ * for Dia.  Enabled by {@link #ENABLED_INIT_PARAM}.
+ */
+public final class DiaPrewarm {
+
+  private static final Logger logger = Logger.getLogger(DiaPrewarm.class.getName());
+
+  /**
+   * The context init parameter that, when {@code "true"}, pre-exports all diagrams after startup.
+   */
+  public static final String ENABLED_INIT_PARAM = DiaPrewarm.class.getName() + ".enabled";
+
+  /**
+   * The context init parameter for additional sizes to pre-export, separated by commas or whitespace.
+   * Each is given as <code>{width}x{height}</code>, using {@code _} when not provided, such as {@code 400x_}.
+   * The default size is always pre-exported.
+   */
+  public static final String SIZES_INIT_PARAM = DiaPrewarm.class.getName() + ".sizes";
+
+  /**
+   * The context init parameter for the number of diagrams exported at once.
+   * Defaults to half the available processors.
+   */
+  public static final String THREADS_INIT_PARAM = DiaPrewarm.class.getName() + ".threads";
+
+  /**
+   * The context init parameter for the number of seconds to wait after startup, giving time for all books to be
+   * registered.
+   */
+  public static final String DELAY_INIT_PARAM = DiaPrewarm.class.getName() + ".delay";
+
+  /**
+   * The default number of seconds to wait after startup.
+   */
+  public static final int DEFAULT_DELAY = 10;
+
+  private static final ScopeEE.Application.Attribute<DiaPrewarm> APPLICATION_ATTRIBUTE =
+      ScopeEE.APPLICATION.attribute(DiaPrewarm.class.getName());
+
+  /**
+   * Gets the pre-warm of the given context.
+   *
+   * @return  the pre-warm or {@code null} when not enabled
+   */
+  public static DiaPrewarm getInstance(ServletContext servletContext) {
+    return APPLICATION_ATTRIBUTE.context(servletContext).get();
+  }
+
+  /**
+   * Starts the pre-warm when enabled and stops it on shutdown.
+   */
+  @WebListener("Pre-exports all diagrams in the background after startup, when enabled.")
+  public static class Initializer implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+      ServletContext servletContext = event.getServletContext();
+      if (Boolean.parseBoolean(servletContext.getInitParameter(ENABLED_INIT_PARAM))) {
+        DiaPrewarm prewarm = new DiaPrewarm(servletContext);
+        APPLICATION_ATTRIBUTE.context(servletContext).set(prewarm);
+        prewarm.start();
+      }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+      ServletContext servletContext = event.getServletContext();
+      DiaPrewarm prewarm = getInstance(servletContext);
+      if (prewarm != null) {
+        prewarm.stop();
+        APPLICATION_ATTRIBUTE.context(servletContext).remove();
+      }
+    }
+  }
+
+  private static int parseSize(String size) {
+    return (size.length() == 1 && size.charAt(0) == DiaImpl.EMPTY_SIZE) ? 0 : Integer.parseInt(size);
+  }
+
+  /**
+   * Parses the sizes, always including the default size.
+   *
+   * @return  the list of {@code {width, height}}
+   */
+  private static List<int[]> parseSizes(String sizes) {
+    List<int[]> parsed = new ArrayList<>();
+    parsed.add(new int[]{0, 0});
+    if (sizes != null) {
+      for (String size : sizes.trim().split("[\\s,]+")) {
+        if (!size.isEmpty()) {
+          int dimSepPos = size.indexOf(DiaImpl.DIMENSION_SEPARATOR);
+          if (dimSepPos == -1) {
+            throw new IllegalArgumentException("Invalid size, expected {width}x{height}: " + size);
+          }
+          parsed.add(new int[]{
+              parseSize(size.substring(0, dimSepPos)),
+              parseSize(size.substring(dimSepPos + 1))
+          });
+        }
+      }
+    }
+    return parsed;
+  }
+
+  private final ServletContext servletContext;
+  private final List<int[]> sizes;
+  private final int threads;
+  private final int delay;
+
+  private final AtomicInteger total = new AtomicInteger();
+  private final AtomicInteger completed = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private volatile boolean finished;
+  private volatile boolean crawlFailed;
+
+  private Thread crawler;
+  private ExecutorService executor;
+
+  private DiaPrewarm(ServletContext servletContext) {
+    this.servletContext = servletContext;
+    this.sizes = parseSizes(servletContext.getInitParameter(SIZES_INIT_PARAM));
+    this.threads = DiaImpl.getIntInitParameter(
+        servletContext,
+        THREADS_INIT_PARAM,
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+    );
+    this.delay = DiaImpl.getIntInitParameter(servletContext, DELAY_INIT_PARAM, DEFAULT_DELAY);
+  }
+
+  /**
+   * Gets the number of diagrams found so far.
+   */
+  public int getTotal() {
+    return total.get();
+  }
+
+  /**
+   * Gets the number of diagrams exported in all sizes.
+   */
+  public int getCompleted() {
+    return completed.get();
+  }
+
+  /**
+   * Gets the number of diagrams that failed to export.
+   */
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Checks if all diagrams have been found and exported, or have failed.  Also finished when the search for diagrams
+   * has {@linkplain #isCrawlFailed() failed}, after exporting the diagrams already found.
+   */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Checks if the search for diagrams failed, leaving some diagrams to be exported when first requested.
+   */
+  public boolean isCrawlFailed() {
+    return crawlFailed;
+  }
+
+  private synchronized void start() {
+    AtomicInteger threadNum = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, DiaPrewarm.class.getName() + "-" + threadNum.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    crawler = new Thread(this::crawl, DiaPrewarm.class.getName());
+    crawler.setDaemon(true);
+    crawler.start();
+  }
+
+  private synchronized void stop() {
+    if (crawler != null) {
+      crawler.interrupt();
+      crawler = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private void crawl() {
+    ExecutorService myExecutor;
+    synchronized (this) {
+      myExecutor = executor;
+    }
+    if (myExecutor == null) {
+      return;
+    }
+    try {
+      if (delay > 0) {
+        TimeUnit.SECONDS.sleep(delay);
+      }
+      long startTime = System.currentTimeMillis();
+      try {
+        for (Book book : SemanticCMS.getInstance(servletContext).getBooks().values()) {
+          String pathPrefix = book.getPathPrefix();
+          findDiagrams(book, pathPrefix, pathPrefix + '/', myExecutor);
+        }
+      } catch (RuntimeException e) {
+        if (myExecutor.isShutdown()) {
+          // Stopped on shutdown
+          return;
+        }
+        // Finish with the diagrams already found instead of never finishing
+        crawlFailed = true;
+        logger.log(Level.SEVERE, "Unable to find all diagrams to pre-warm", e);
+      }
+      myExecutor.shutdown();
+      while (!myExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+        // Keep waiting
+      }
+      finished = true;
+      logger.info(
+          "Diagram pre-warm finished in " + (System.currentTimeMillis() - startTime) + " ms: "
+              + completed + " exported, " + failed + " failed" + (crawlFailed ? ", search for diagrams failed" : "")
+      );
+    } catch (InterruptedException e) {
+      // Stopped on shutdown
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Recursively finds all diagrams in a book directory, submitting each to be exported.
+   */
+  private void findDiagrams(Book book, String pathPrefix, String directory, ExecutorService myExecutor) throws InterruptedException {
+    Set<String> paths = servletContext.getResourcePaths(directory);
+    if (paths != null) {
+      for (String path : paths) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedException();
+        }
+        if (path.endsWith("/")) {
+          if (!"/META-INF/".equals(path) && !"/WEB-INF/".equals(path)) {
+            findDiagrams(book, pathPrefix, path, myExecutor);
+          }
+        } else if (path.toLowerCase(Locale.ROOT).endsWith(Dia.DOT_EXTENSION)) {
+          PageRef pageRef = new PageRef(book, path.substring(pathPrefix.length()));
+          total.incrementAndGet();
+          myExecutor.execute(() -> prewarm(pageRef));
+        }
+      }
+    }
+  }
+
+  private void prewarm(PageRef pageRef) {
+    try {
+      for (int[] size : sizes) {
+        DiaImpl.prewarmDiagram(servletContext, pageRef, size[0], size[1]);
+      }
+      completed.incrementAndGet();
+    } catch (InterruptedException e) {
+      // Restore the interrupted status
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      logger.log(Level.WARNING, "Unable to pre-warm diagram: " + pageRef, e);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a Dia process under supervision.  The process is given a limited time to complete, after which it and all
+ * its descendants are destroyed.  Standard error is scanned as it is written, with only a bounded amount kept for
+ * the error message.
+ */
+final class DiaProcess {
+
+  /**
+   * The maximum number of characters of standard error kept for the error message.
+   */
+  private static final int MAX_STDERR_CHARS = 8192;
+
+  /**
+   * The time allowed for the process to exit after being destroyed, and for standard error to be drained after the
+   * process exits.
+   */
+  private static final long DESTROY_WAIT_MILLIS = 5000;
+
+  private static final AtomicLong timeouts = new AtomicLong();
+
+  /**
+   * Gets the total number of processes destroyed for not completing within their time limit since startup.
+   */
+  static long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /** Make no instances. */
+  private DiaProcess() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Scans standard error for the expected lines, keeping a bounded amount of it for the error message.
+   */
+  private static final class StderrScanner implements Runnable {
+
+    private final Process process;
+    private final Set<String> remaining;
+    private final Set<String> found = new HashSet<>();
+    private final StringBuilder stderr = new StringBuilder();
+    private boolean allFound;
+    private volatile IOException error;
+
+    private StderrScanner(Process process, Set<String> expectedLines) {
+      this.process = process;
+      this.remaining = new HashSet<>(expectedLines);
+    }
+
+    @Override
+    public void run() {
+      try (BufferedReader errIn = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+        String line;
+        while ((line = errIn.readLine()) != null) {
+          // Once all found, the remaining output is only drained so the process is not blocked writing
+          synchronized (stderr) {
+            if (!allFound) {
+              if (remaining.remove(line)) {
+                found.add(line);
+                allFound = remaining.isEmpty();
+              } else if (stderr.length() < MAX_STDERR_CHARS) {
+                stderr.append(line, 0, Math.min(line.length(), MAX_STDERR_CHARS - stderr.length())).append('\n');
+              }
+            }
+          }
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+
+    private String getStderr() {
+      synchronized (stderr) {
+        return stderr.toString();
+      }
+    }
+
+    private Set<String> getFound() {
+      synchronized (stderr) {
+        return new HashSet<>(found);
+      }
+    }
+  }
+
+  /**
+   * Destroys the process and all its descendants.
+   */
+  private static void destroyTree(Process process) {
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+  }
+
+  /**
+   * Runs the command, waiting for it to complete successfully.
+   *
+   * @param  expectedLines  the lines of standard error indicating success, or empty to only check the exit value
+   * @param  timeoutMillis  the maximum time to wait for the process to complete, or {@code 0} to wait without limit
+   *
+   * @return  the expected lines found
+   *
+   * @throws  IOException  when the process fails, does not write any of the expected lines, or does not complete in
+   *                       time
+   */
+  static Set<String> run(
+      String[] command,
+      Set<String> expectedLines,
+      long timeoutMillis
+  ) throws InterruptedException, IOException {
+    Process process = new ProcessBuilder(command)
+        .redirectInput(ProcessBuilder.Redirect.PIPE)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .start();
+    try {
+      process.getOutputStream().close();
+      StderrScanner scanner = new StderrScanner(process, expectedLines);
+      Thread scannerThread = new Thread(scanner, DiaProcess.class.getName() + ".stderr-" + process.pid());
+      scannerThread.setDaemon(true);
+      scannerThread.start();
+      if (timeoutMillis == 0) {
+        process.waitFor();
+      } else if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        timeouts.incrementAndGet();
+        destroyTree(process);
+        process.waitFor(DESTROY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        throw new InterruptedIOException(
+            command[0] + ": did not complete within " + timeoutMillis + " ms, destroyed: " + scanner.getStderr()
+        );
+      }
+      // Descendants may still hold standard error open, which must not block
+      scannerThread.join(DESTROY_WAIT_MILLIS);
+      int exitVal = process.exitValue();
+      if (exitVal != 0) {
+        throw new IOException(command[0] + ": non-zero exit value: " + exitVal + ": " + scanner.getStderr());
+      }
+      if (expectedLines.isEmpty()) {
+        return Collections.emptySet();
+      }
+      Set<String> found = scanner.getFound();
+      if (found.isEmpty()) {
+        throw new IOException(command[0] + ": " + scanner.getStderr(), scanner.error);
+      }
+      return found;
+    } finally {
+      if (process.isAlive() || process.descendants().anyMatch(ProcessHandle::isAlive)) {
+        destroyTree(process);
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores exports in a directory, writing each to a scratch file that is then atomically moved into place.
+ * This does not coordinate between JVMs, see {@link SharedDirectoryExportStore} for a directory shared by many.
+ */
+public class DirectoryExportStore implements ExportStore {
+
+  /**
+   * The suffix of scratch files, which are hidden and removed once published.
+   */
+  static final String SCRATCH_SUFFIX = ".tmp";
+
+  private final File directory;
+
+  public DirectoryExportStore(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Gets the directory exports are stored in.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public File getFile(String name) {
+    return new File(directory, name.replace('/', File.separatorChar));
+  }
+
+  @Override
+  public boolean create(File file, ExportWriter writer) throws InterruptedException, IOException {
+    if (file.exists()) {
+      return false;
+    }
+    Path target = file.toPath();
+    Path dir = target.getParent();
+    // Safe for concurrent creation of shared parent directories
+    Files.createDirectories(dir);
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    Path scratch = Files.createTempFile(
+        dir,
+        '.' + name + '-',
+        (dot == -1 ? "" : name.substring(dot)) + SCRATCH_SUFFIX
+    );
+    try {
+      writer.write(scratch.toFile());
+      try {
+        Files.move(scratch, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(scratch, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(scratch);
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + '(' + directory + ')';
+  }
+}
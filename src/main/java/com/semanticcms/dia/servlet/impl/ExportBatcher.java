@@ -0,0 +1,280 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import com.aoapps.lang.concurrent.ExecutionExceptions;
+import com.aoapps.lang.exception.WrappedException;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers exports of the same size and format over a short window, exporting them together through a single Dia
+ * process.  The first export of a batch leads it, waiting for the window then running the batch, while each
+ * export waits only for its own result.  When the batch fails as a whole, such as Dia crashing on one broken
+ * diagram, each export is retried alone so the failure is only reported for the diagrams that actually fail.
+ */
+final class ExportBatcher {
+
+  /**
+   * Exports all the diagrams of a batch.
+   */
+  @FunctionalInterface
+  interface BatchExporter {
+
+    /**
+     * Exports all the diagrams of a batch.
+     *
+     * @param  exports  the diagram for each export file, in the order added
+     *
+     * @return  the failure of each export file not exported
+     *
+     * @throws  IOException  when the entire batch fails
+     */
+    Map<File, IOException> export(
+        Integer width,
+        Integer height,
+        String extension,
+        Map<File, File> exports
+    ) throws InterruptedException, IOException;
+  }
+
+  /**
+   * Completes each export of a batch that failed as a whole, for the export to be retried alone.
+   */
+  private static final class BatchFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchFailedException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  private static final class Batch {
+
+    private final Integer width;
+    private final Integer height;
+    private final String extension;
+
+    /**
+     * The diagram for each export file, in the order added.
+     */
+    private final Map<File, File> exports = new LinkedHashMap<>();
+
+    /**
+     * The result of each export file.
+     */
+    private final Map<File, CompletableFuture<Void>> results = new HashMap<>();
+
+    private boolean closed;
+
+    private Batch(Integer width, Integer height, String extension) {
+      this.width = width;
+      this.height = height;
+      this.extension = extension;
+    }
+
+    /**
+     * Checks if a diagram of the same name is already in this batch, since Dia names the output of each diagram by
+     * its name alone.
+     */
+    private boolean containsName(String name) {
+      for (File diaFile : exports.values()) {
+        if (diaFile.getName().equals(name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final BatchExporter exporter;
+  private final long windowNanos;
+  private final int maxBatchSize;
+
+  /**
+   * The open batch for each size and format.
+   */
+  private final Map<String, Batch> batches = new HashMap<>();
+
+  /**
+   * @param  windowMillis  the time the first export of a batch waits for others to join it
+   * @param  maxBatchSize  the maximum number of exports in a batch, after which the batch is run immediately
+   */
+  ExportBatcher(BatchExporter exporter, long windowMillis, int maxBatchSize) {
+    this.exporter = exporter;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Exports a diagram as part of a batch, returning once the diagram is exported.
+   */
+  void export(
+      File diaFile,
+      File exportFile,
+      Integer width,
+      Integer height,
+      String extension
+  ) throws InterruptedException, IOException {
+    String key = width + "x" + height + extension;
+    Batch batch;
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    boolean leader;
+    synchronized (batches) {
+      batch = batches.get(key);
+      if (batch != null && batch.containsName(diaFile.getName())) {
+        // Would overwrite the output of another diagram, export alone
+        batch = null;
+        leader = false;
+      } else {
+        if (batch == null) {
+          batch = new Batch(width, height, extension);
+          batches.put(key, batch);
+          leader = true;
+        } else {
+          leader = false;
+        }
+        batch.exports.put(exportFile, diaFile);
+        batch.results.put(exportFile, result);
+        if (batch.exports.size() >= maxBatchSize) {
+          close(key, batch);
+        }
+      }
+    }
+    if (batch == null) {
+      exportAlone(diaFile, exportFile, width, height, extension);
+      return;
+    }
+    if (leader) {
+      lead(key, batch);
+    }
+    try {
+      result.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BatchFailedException) {
+        exportAlone(diaFile, exportFile, width, height, extension);
+        return;
+      }
+      // Maintain expected exception types while not losing stack trace
+      ExecutionExceptions.wrapAndThrowWithTemplate(e, ExportRejectedException.class, (template, cause) -> {
+        ExportRejectedException rejected = new ExportRejectedException(template.getMessage());
+        rejected.initCause(cause);
+        return rejected;
+      });
+      ExecutionExceptions.wrapAndThrow(e, IOException.class, IOException::new);
+      throw new WrappedException(e);
+    }
+  }
+
+  /**
+   * Exports a diagram through its own Dia process.
+   */
+  private void exportAlone(
+      File diaFile,
+      File exportFile,
+      Integer width,
+      Integer height,
+      String extension
+  ) throws InterruptedException, IOException {
+    Map<File, File> exports = new HashMap<>();
+    exports.put(exportFile, diaFile);
+    IOException failure = exporter.export(width, height, extension, exports).get(exportFile);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Closes a batch to further exports.  Must be called while holding the lock on {@link #batches}.
+   */
+  private void close(String key, Batch batch) {
+    assert Thread.holdsLock(batches);
+    if (!batch.closed) {
+      batch.closed = true;
+      if (batches.get(key) == batch) {
+        batches.remove(key);
+      }
+      batches.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for the window or the batch to fill, then runs the batch and completes the result of each export.
+   */
+  private void lead(String key, Batch batch) throws InterruptedException {
+    boolean interrupted = false;
+    synchronized (batches) {
+      long deadline = System.nanoTime() + windowNanos;
+      long remaining;
+      while (!batch.closed && (remaining = deadline - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(batches, remaining);
+        } catch (InterruptedException e) {
+          // Other exports are waiting on this batch, run it now and restore the interrupted status after
+          interrupted = true;
+          break;
+        }
+      }
+      close(key, batch);
+    }
+    try {
+      Map<File, IOException> failures = exporter.export(batch.width, batch.height, batch.extension, batch.exports);
+      for (Map.Entry<File, CompletableFuture<Void>> entry : batch.results.entrySet()) {
+        IOException failure = failures.get(entry.getKey());
+        if (failure == null) {
+          entry.getValue().complete(null);
+        } else {
+          entry.getValue().completeExceptionally(failure);
+        }
+      }
+    } catch (ExportRejectedException e) {
+      // Not a failure of any diagram, retrying alone would only be rejected again
+      for (CompletableFuture<Void> result : batch.results.values()) {
+        result.completeExceptionally(e);
+      }
+    } catch (InterruptedException e) {
+      for (CompletableFuture<Void> result : batch.results.values()) {
+        result.completeExceptionally(new BatchFailedException(e));
+      }
+      throw e;
+    } catch (Throwable t) {
+      // A batch of one has nothing more to learn from being retried alone
+      Throwable failure = batch.results.size() == 1 ? t : new BatchFailedException(t);
+      for (CompletableFuture<Void> result : batch.results.values()) {
+        result.completeExceptionally(failure);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of concurrent Dia processes, with a bounded number of exports waiting for their turn.
+ */
+final class ExportBulkhead {
+
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger running = new AtomicInteger();
+
+  ExportBulkhead(int maxConcurrent, int maxQueued) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("maxConcurrent < 1: " + maxConcurrent);
+    }
+    if (maxQueued < 0) {
+      throw new IllegalArgumentException("maxQueued < 0: " + maxQueued);
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  int getMaxQueued() {
+    return maxQueued;
+  }
+
+  int getQueued() {
+    return queued.get();
+  }
+
+  int getRunning() {
+    return running.get();
+  }
+
+  /**
+   * Waits for a turn to run Dia.  Every successful call must be followed by {@link #release()}.
+   *
+   * @throws  ExportRejectedException  when the queue is full
+   */
+  void acquire() throws InterruptedException, ExportRejectedException {
+    if (!permits.tryAcquire()) {
+      if (queued.incrementAndGet() > maxQueued) {
+        queued.decrementAndGet();
+        throw new ExportRejectedException(
+            "Too many diagram exports: " + maxConcurrent + " running and " + maxQueued + " waiting"
+        );
+      }
+      try {
+        permits.acquire();
+      } finally {
+        queued.decrementAndGet();
+      }
+    }
+    running.incrementAndGet();
+  }
+
+  void release() {
+    running.decrementAndGet();
+    permits.release();
+  }
+}
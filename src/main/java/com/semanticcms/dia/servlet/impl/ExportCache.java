@@ -0,0 +1,120 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-heap cache of the bytes of exported files.  Entries are evicted least-recently-used first until the
+ * total size of all entries is within the limit, and are removed when the file is re-exported.
+ */
+final class ExportCache {
+
+  /**
+   * Files larger than this fraction of the cache are not cached, so a single large export cannot flush the cache.
+   */
+  private static final int MAX_ENTRY_DIVISOR = 8;
+
+  private final Map<File, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long maxBytes;
+
+  private long totalBytes;
+
+  /**
+   * Incremented on each removal, used to avoid caching bytes read before the file was re-exported.
+   */
+  private long removals;
+
+  ExportCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Sets the maximum total bytes, evicting as needed.  {@code 0} disables the cache.
+   */
+  synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  /**
+   * Gets the bytes of the given file, reading into the cache when not already cached.
+   *
+   * @return  the bytes or {@code null} when the file is too large to be cached
+   */
+  byte[] get(File file) throws IOException {
+    long maxEntryBytes;
+    long removalsBefore;
+    synchronized (this) {
+      byte[] bytes = entries.get(file);
+      if (bytes != null) {
+        return bytes;
+      }
+      maxEntryBytes = maxBytes / MAX_ENTRY_DIVISOR;
+      removalsBefore = removals;
+    }
+    long length = file.length();
+    if (length <= 0 || length > maxEntryBytes) {
+      return null;
+    }
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    synchronized (this) {
+      if (removals == removalsBefore) {
+        byte[] old = entries.put(file, bytes);
+        if (old != null) {
+          totalBytes -= old.length;
+        }
+        totalBytes += bytes.length;
+        evict();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Removes the file from the cache, called whenever it is re-exported.
+   */
+  synchronized void remove(File file) {
+    removals++;
+    byte[] old = entries.remove(file);
+    if (old != null) {
+      totalBytes -= old.length;
+    }
+  }
+
+  private void evict() {
+    assert Thread.holdsLock(this);
+    Iterator<byte[]> iter = entries.values().iterator();
+    while (totalBytes > maxBytes && iter.hasNext()) {
+      totalBytes -= iter.next().length;
+      iter.remove();
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Periodically cleans a {@link DirectoryExportStore}, keeping it within a quota of total bytes and number of files.
+ * A {@link SharedDirectoryExportStore} is only cleaned when explicitly enabled, since the servers sharing it would
+ * otherwise each clean it by only their own accesses.  Other stores are responsible for their own cleaning.
+ *
+ * <p>Each run removes:</p>
+ * <ol>
+ *   <li>Scratch and lock files abandoned by a failed export.</li>
+ *   <li>Exports not named by the {@linkplain ContentHash hash of a diagram}, such as left by previous versions.</li>
+ *   <li>Exports of diagrams that have been deleted.</li>
+ *   <li>The least recently accessed exports, until within the quota.</li>
+ * </ol>
+ *
+ * <p>Accesses are tracked by this JVM, combined with the access and modified times of each file, which may not be
+ * updated by all filesystems.  When many servers share a directory, each server only knows of its own accesses.</p>
+ */
+final class ExportJanitor {
+
+  private static final Logger logger = Logger.getLogger(ExportJanitor.class.getName());
+
+  /**
+   * The name of an export that is named by the hash of its diagram.
+   */
+  private static final Pattern HASHED_EXPORT = Pattern.compile("[0-9a-f]{64}-.+");
+
+  /**
+   * The name of a subdirectory by the first two digits of a hash.
+   */
+  private static final Pattern HASH_DIRECTORY = Pattern.compile("[0-9a-f]{2}");
+
+  /**
+   * Scratch and lock files are only removed once unmodified for this long, so in-progress exports are not affected.
+   */
+  private static final long ABANDONED_MILLIS = 60L * 60 * 1000;
+
+  private final long maxBytes;
+  private final int maxFiles;
+
+  /**
+   * Called with each export after it is removed.
+   */
+  private final Consumer<File> onRemove;
+
+  /**
+   * The last time each export was accessed by this JVM.
+   */
+  private final ConcurrentMap<File, Long> accessTimes = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Starts cleaning the store.
+   *
+   * @param  store  gets the store on each run, since it is not created until first used
+   * @param  maxBytes  the maximum total bytes of exports or {@code 0} for unlimited
+   * @param  maxFiles  the maximum number of exports or {@code 0} for unlimited
+   * @param  intervalSeconds  the time between each run
+   * @param  cleanShared  also clean a {@link SharedDirectoryExportStore}
+   */
+  ExportJanitor(
+      Supplier<? extends ExportStore> store,
+      long maxBytes,
+      int maxFiles,
+      int intervalSeconds,
+      boolean cleanShared,
+      Consumer<File> onRemove
+  ) {
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.onRemove = onRemove;
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, ExportJanitor.class.getName());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(
+        () -> {
+          ExportStore exportStore = store.get();
+          Class<?> storeClass = exportStore.getClass();
+          if (
+              storeClass == DirectoryExportStore.class
+                  || (cleanShared && storeClass == SharedDirectoryExportStore.class)
+          ) {
+            try {
+              clean(((DirectoryExportStore) exportStore).getDirectory().toPath());
+            } catch (IOException | RuntimeException e) {
+              // Tried again next run
+              logger.log(Level.WARNING, "Unable to clean " + exportStore, e);
+            }
+          }
+        },
+        intervalSeconds,
+        intervalSeconds,
+        TimeUnit.SECONDS
+    );
+  }
+
+  /**
+   * Stops cleaning the store.
+   */
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Records the access of an export.
+   */
+  void accessed(File export) {
+    accessTimes.put(export, System.currentTimeMillis());
+  }
+
+  private static final class Export {
+    private final Path path;
+    private final long size;
+    private final long lastAccessed;
+
+    private Export(Path path, long size, long lastAccessed) {
+      this.path = path;
+      this.size = size;
+      this.lastAccessed = lastAccessed;
+    }
+  }
+
+  private static boolean isExport(String name) {
+    return name.endsWith(DiaImpl.PNG_EXTENSION)
+        || name.endsWith(DiaImpl.SVG_EXTENSION)
+        || name.endsWith(DiaImpl.SVG_EXTENSION + DiaImpl.GZIP_EXTENSION);
+  }
+
+  private void clean(Path root) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    final Set<String> orphaned = ContentHash.getOrphanedHashes();
+    final long now = System.currentTimeMillis();
+    final List<Export> exports = new ArrayList<>();
+    final Set<File> found = new HashSet<>();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (attrs.isRegularFile()) {
+          String name = file.getFileName().toString();
+          if (
+              name.endsWith(DirectoryExportStore.SCRATCH_SUFFIX)
+                  || name.endsWith(SharedDirectoryExportStore.LOCK_SUFFIX)
+          ) {
+            if (now - attrs.lastModifiedTime().toMillis() >= ABANDONED_MILLIS) {
+              Files.deleteIfExists(file);
+            }
+          } else if (isExport(name)) {
+            if (
+                !HASHED_EXPORT.matcher(name).matches()
+                    || orphaned.contains(name.substring(0, name.indexOf('-')))
+            ) {
+              remove(file);
+            } else {
+              File export = file.toFile();
+              found.add(export);
+              Long accessed = accessTimes.get(export);
+              exports.add(new Export(
+                  file,
+                  attrs.size(),
+                  Math.max(
+                      accessed == null ? 0 : accessed,
+                      Math.max(attrs.lastAccessTime().toMillis(), attrs.lastModifiedTime().toMillis())
+                  )
+              ));
+            }
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) {
+        // Removed concurrently
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        // Remove empty directories left by previous versions, hash directories are kept for concurrent exports
+        if (!dir.equals(root) && !HASH_DIRECTORY.matcher(dir.getFileName().toString()).matches()) {
+          try {
+            Files.deleteIfExists(dir);
+          } catch (DirectoryNotEmptyException e) {
+            // Still in use
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    accessTimes.keySet().retainAll(found);
+    // Remove least recently accessed until within quota
+    long totalBytes = 0;
+    for (Export export : exports) {
+      totalBytes += export.size;
+    }
+    int totalFiles = exports.size();
+    if ((maxBytes > 0 && totalBytes > maxBytes) || (maxFiles > 0 && totalFiles > maxFiles)) {
+      exports.sort(Comparator.comparingLong(export -> export.lastAccessed));
+      Map<Path, Export> byPath = new HashMap<>();
+      for (Export export : exports) {
+        byPath.put(export.path, export);
+      }
+      Set<Path> removed = new HashSet<>();
+      for (Export export : exports) {
+        if ((maxBytes <= 0 || totalBytes <= maxBytes) && (maxFiles <= 0 || totalFiles <= maxFiles)) {
+          break;
+        }
+        if (removed.add(export.path)) {
+          remove(export.path);
+          totalBytes -= export.size;
+          totalFiles--;
+          // An SVG and its precompressed variant are removed together, so both are recreated by the next export
+          Export variant = byPath.get(getVariant(export.path));
+          if (variant != null && removed.add(variant.path)) {
+            remove(variant.path);
+            totalBytes -= variant.size;
+            totalFiles--;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the precompressed variant of an SVG export, or the SVG export of a precompressed variant.
+   *
+   * @return  the path or {@code null} when not an SVG export or variant
+   */
+  private static Path getVariant(Path export) {
+    String name = export.getFileName().toString();
+    if (name.endsWith(DiaImpl.SVG_EXTENSION)) {
+      return export.resolveSibling(name + DiaImpl.GZIP_EXTENSION);
+    }
+    if (name.endsWith(DiaImpl.SVG_EXTENSION + DiaImpl.GZIP_EXTENSION)) {
+      return export.resolveSibling(name.substring(0, name.length() - DiaImpl.GZIP_EXTENSION.length()));
+    }
+    return null;
+  }
+
+  private void remove(Path export) throws IOException {
+    if (Files.deleteIfExists(export)) {
+      File file = export.toFile();
+      accessTimes.remove(file);
+      onRemove.accept(file);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stores the exports of diagrams.  Exports are named by the contents of their diagram, so an existing export is
+ * always up-to-date and is never replaced.
+ *
+ * <p>Implementations must be safe for concurrent use.  Within a single JVM, {@link DiaImpl} already serializes the
+ * creation of each export, but implementations shared between JVMs must coordinate between them.</p>
+ *
+ * @see  DiaImpl#getExportStore(javax.servlet.ServletContext)
+ * @see  DiaImpl#EXPORT_STORE_APPLICATION_ATTRIBUTE
+ */
+public interface ExportStore {
+
+  /**
+   * Writes the contents of a new export.
+   */
+  @FunctionalInterface
+  interface ExportWriter {
+
+    /**
+     * Writes the export to the given scratch file, which will be in the same directory as the export.
+     * The scratch file may already exist as an empty file, and must be overwritten.
+     */
+    void write(File scratchFile) throws InterruptedException, IOException;
+  }
+
+  /**
+   * Gets the file for an export.  This does not access the filesystem.
+   *
+   * @param  name  the relative path of the export, using {@code '/'} as the separator
+   */
+  File getFile(String name);
+
+  /**
+   * Creates an export when it does not already exist.  Readers never see a partially written export.
+   *
+   * @param  file  the export, as returned by {@link #getFile(java.lang.String)}
+   *
+   * @return  {@code true} when the export was created or {@code false} when it already existed
+   */
+  boolean create(File file, ExportWriter writer) throws InterruptedException, IOException;
+}
@@ -0,0 +1,238 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the modified times of files, invalidated by a {@link WatchService} on their directories.
+ * While enabled, checking whether an export is up-to-date does not access the filesystem.
+ * When disabled, or when a directory cannot be watched, modified times are always read from the filesystem.
+ */
+final class FileMetadataCache {
+
+  private static final Logger logger = Logger.getLogger(FileMetadataCache.class.getName());
+
+  /**
+   * A directory that could not be registered, such as not yet existing, is not tried again for this long, unless
+   * it is created in a watched directory first.
+   */
+  private static final long REGISTER_RETRY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * The modified time of each file, {@code 0} when the file does not exist.
+   */
+  private final ConcurrentMap<File, Long> lastModifieds = new ConcurrentHashMap<>();
+
+  /**
+   * The directories registered with the watch service, mapped to {@code false} when unable to be watched.
+   */
+  private final ConcurrentMap<File, Boolean> directories = new ConcurrentHashMap<>();
+
+  /**
+   * The {@link System#nanoTime()} after which each directory that could not be registered is tried again.
+   */
+  private final ConcurrentMap<File, Long> registerRetries = new ConcurrentHashMap<>();
+
+  /**
+   * Incremented before each invalidation, so a modified time read before an invalidation is never left cached
+   * after it.
+   */
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private volatile WatchService watchService;
+
+  /**
+   * Enables caching, starting the watch service.
+   */
+  synchronized void enable() throws IOException {
+    if (watchService == null) {
+      final WatchService newWatchService = FileSystems.getDefault().newWatchService();
+      watchService = newWatchService;
+      Thread thread = new Thread(() -> watch(newWatchService), FileMetadataCache.class.getName());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Disables caching, stopping the watch service.
+   */
+  synchronized void disable() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, null, e);
+      }
+      watchService = null;
+      directories.clear();
+      registerRetries.clear();
+      invalidateAll();
+    }
+  }
+
+  boolean isEnabled() {
+    return watchService != null;
+  }
+
+  /**
+   * Gets the modified time of a file.
+   *
+   * @return  the modified time or {@code 0} when the file does not exist
+   *
+   * @see  File#lastModified()
+   */
+  long lastModified(File file) {
+    if (watchService == null) {
+      return file.lastModified();
+    }
+    Long cached = lastModifieds.get(file);
+    if (cached != null) {
+      return cached;
+    }
+    long invalidationsBefore = invalidations.get();
+    boolean watched = isWatched(file.getParentFile());
+    long lastModified = file.lastModified();
+    if (watched) {
+      Long value = lastModified;
+      lastModifieds.put(file, value);
+      // An invalidation since reading may have been before the put, remove again
+      if (invalidations.get() != invalidationsBefore) {
+        lastModifieds.remove(file, value);
+      }
+    }
+    return lastModified;
+  }
+
+  /**
+   * Checks if the modified time of a file is currently cached, meaning the file has not changed since it was read.
+   */
+  boolean isCached(File file) {
+    return lastModifieds.containsKey(file);
+  }
+
+  /**
+   * Removes a file from the cache, called after changing the file.
+   */
+  void invalidate(File file) {
+    invalidations.incrementAndGet();
+    lastModifieds.remove(file);
+  }
+
+  private void invalidateAll() {
+    invalidations.incrementAndGet();
+    lastModifieds.clear();
+  }
+
+  /**
+   * Registers the directory with the watch service when first seen.
+   *
+   * @return  {@code true} when the directory is being watched
+   */
+  private boolean isWatched(File directory) {
+    if (directory == null) {
+      return false;
+    }
+    Boolean watched = directories.get(directory);
+    if (watched != null) {
+      return watched;
+    }
+    Long retryAt = registerRetries.get(directory);
+    if (retryAt != null && System.nanoTime() - retryAt < 0) {
+      return false;
+    }
+    synchronized (this) {
+      watched = directories.get(directory);
+      if (watched == null) {
+        if (watchService == null) {
+          return false;
+        }
+        try {
+          directory.toPath().register(
+              watchService,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE,
+              StandardWatchEventKinds.ENTRY_MODIFY
+          );
+          watched = true;
+        } catch (IOException | ClosedWatchServiceException e) {
+          // Directory might not yet exist, will try again later
+          logger.log(Level.FINE, null, e);
+          registerRetries.put(directory, System.nanoTime() + REGISTER_RETRY_NANOS);
+          return false;
+        } catch (UnsupportedOperationException e) {
+          logger.log(Level.WARNING, null, e);
+          watched = false;
+        }
+        directories.put(directory, watched);
+        registerRetries.remove(directory);
+      }
+      return watched;
+    }
+  }
+
+  private void watch(WatchService watchService) {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            invalidateAll();
+          } else {
+            File file = directory.resolve((Path) event.context()).toFile();
+            invalidate(file);
+            // A newly created directory may now be registered
+            registerRetries.remove(file);
+          }
+        }
+        if (!key.reset()) {
+          // Directory no longer accessible
+          directories.remove(directory.toFile());
+          invalidateAll();
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      // Disabled
+    } catch (InterruptedException e) {
+      // Restore the interrupted status
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Resamples previously exported PNG images in the JVM, avoiding another Dia process.
+ */
+final class ImageResampler {
+
+  /** Make no instances. */
+  private ImageResampler() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Computes the size of the resampled image, maintaining aspect ratio when either dimension is not provided.
+   *
+   * @return  {@code {width, height}}
+   */
+  static int[] getTargetSize(int sourceWidth, int sourceHeight, Integer width, Integer height) {
+    int targetWidth;
+    int targetHeight;
+    if (width == null) {
+      if (height == null) {
+        targetWidth = sourceWidth;
+        targetHeight = sourceHeight;
+      } else {
+        targetHeight = height;
+        targetWidth = (int) Math.round((double) sourceWidth * height / sourceHeight);
+      }
+    } else {
+      targetWidth = width;
+      if (height == null) {
+        targetHeight = (int) Math.round((double) sourceHeight * width / sourceWidth);
+      } else {
+        targetHeight = height;
+      }
+    }
+    return new int[]{
+        Math.max(1, targetWidth),
+        Math.max(1, targetHeight)
+    };
+  }
+
+  /**
+   * Reads the source PNG, scales it to the given size, and writes the result as PNG.
+   */
+  static void resample(File source, File target, Integer width, Integer height) throws IOException {
+    BufferedImage sourceImage = ImageIO.read(source);
+    if (sourceImage == null) {
+      throw new IOException("Unable to read image: " + source);
+    }
+    int[] targetSize = getTargetSize(sourceImage.getWidth(), sourceImage.getHeight(), width, height);
+    BufferedImage scaled = scale(sourceImage, targetSize[0], targetSize[1]);
+    if (!ImageIO.write(scaled, "png", target)) {
+      throw new IOException("No PNG writer available");
+    }
+  }
+
+  /**
+   * Scales an image with quality comparable to the original export.  When reducing by more than half, the image is
+   * progressively halved with bilinear interpolation, which avoids the aliasing of a single large bicubic step.
+   */
+  static BufferedImage scale(BufferedImage image, int targetWidth, int targetHeight) {
+    int type = image.getTransparency() == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+    BufferedImage result = image;
+    int currentWidth = image.getWidth();
+    int currentHeight = image.getHeight();
+    do {
+      int nextWidth = currentWidth > targetWidth ? Math.max(targetWidth, currentWidth / 2) : targetWidth;
+      int nextHeight = currentHeight > targetHeight ? Math.max(targetHeight, currentHeight / 2) : targetHeight;
+      boolean last = nextWidth == targetWidth && nextHeight == targetHeight;
+      BufferedImage next = new BufferedImage(nextWidth, nextHeight, type);
+      Graphics2D g = next.createGraphics();
+      try {
+        g.setRenderingHint(
+            RenderingHints.KEY_INTERPOLATION,
+            last ? RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_BILINEAR
+        );
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+        g.drawImage(result, 0, 0, nextWidth, nextHeight, null);
+      } finally {
+        g.dispose();
+      }
+      result = next;
+      currentWidth = nextWidth;
+      currentHeight = nextHeight;
+    } while (currentWidth != targetWidth || currentHeight != targetHeight);
+    return result;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers exports that recently failed, so a missing or broken diagram is not retried on every request.  Each
+ * consecutive failure doubles the time until the next attempt, up to a maximum.  A failed export is retried
+ * immediately once its diagram is modified.
+ */
+final class NegativeCache<K> {
+
+  /**
+   * The time until the first retry.
+   */
+  private static final long INITIAL_BACKOFF_MILLIS = 5L * 1000;
+
+  /**
+   * The maximum time until a retry of a missing diagram.  This is lower than for a broken diagram, since the creation
+   * of a missing diagram is only noticed on retry.
+   */
+  private static final long MAX_MISSING_BACKOFF_MILLIS = 5L * 60 * 1000;
+
+  /**
+   * The maximum time until a retry of a broken diagram.
+   */
+  private static final long MAX_FAILED_BACKOFF_MILLIS = 60L * 60 * 1000;
+
+  private static final class Failure {
+
+    /**
+     * The diagram or {@code null} when missing.
+     */
+    private final File diaFile;
+
+    /**
+     * The modified time of the diagram when failed.
+     */
+    private final long lastModified;
+
+    private final int failures;
+    private final long retryAt;
+    private final IOException error;
+
+    private Failure(File diaFile, long lastModified, int failures, long retryAt, IOException error) {
+      this.diaFile = diaFile;
+      this.lastModified = lastModified;
+      this.failures = failures;
+      this.retryAt = retryAt;
+      this.error = error;
+    }
+  }
+
+  /**
+   * The failures, in a concurrent map since checked on every export.
+   */
+  private final ConcurrentMap<K, Failure> failures = new ConcurrentHashMap<>();
+
+  private final int maxEntries;
+
+  NegativeCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Throws the previous failure again while backing-off, unless the diagram has since been modified.
+   *
+   * @param  metadataCache  provides the current modified time of a diagram
+   */
+  void check(K key, FileMetadataCache metadataCache) throws IOException {
+    Failure failure = failures.get(key);
+    if (
+        failure != null
+            && System.currentTimeMillis() < failure.retryAt
+            && (failure.diaFile == null || metadataCache.lastModified(failure.diaFile) == failure.lastModified)
+    ) {
+      // Maintain expected exception types while not losing stack trace
+      IOException error = failure.error;
+      IOException rethrown;
+      if (error instanceof FileNotFoundException) {
+        rethrown = new FileNotFoundException(error.getMessage());
+        rethrown.initCause(error);
+      } else {
+        rethrown = new IOException(error.getMessage(), error);
+      }
+      throw rethrown;
+    }
+  }
+
+  /**
+   * Records a failure, backing-off exponentially from any previous failure of the same diagram version.  A failure
+   * already recorded, or thrown again by {@link #check(java.lang.Object, FileMetadataCache) check}, is ignored, so an
+   * export checked at more than one level is only backed-off once.
+   *
+   * @param  diaFile  the diagram or {@code null} when missing
+   * @param  lastModified  the modified time of the diagram when exported
+   */
+  void failed(K key, File diaFile, long lastModified, IOException error) {
+    Failure previous = failures.get(key);
+    if (previous != null && (previous.error == error || previous.error == error.getCause())) {
+      return;
+    }
+    int count = previous != null && previous.lastModified == lastModified ? previous.failures + 1 : 1;
+    long maxBackoff = diaFile == null ? MAX_MISSING_BACKOFF_MILLIS : MAX_FAILED_BACKOFF_MILLIS;
+    long backoff = INITIAL_BACKOFF_MILLIS << Math.min(count - 1, 30);
+    if (backoff <= 0 || backoff > maxBackoff) {
+      backoff = maxBackoff;
+    }
+    long now = System.currentTimeMillis();
+    failures.put(key, new Failure(diaFile, lastModified, count, now + backoff, error));
+    if (failures.size() > maxEntries) {
+      // Remove those ready to retry, then any others until within bounds
+      failures.values().removeIf(failure -> failure.retryAt <= now);
+      Iterator<K> iter = failures.keySet().iterator();
+      while (failures.size() > maxEntries && iter.hasNext()) {
+        iter.next();
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Forgets any failure after a successful export.
+   */
+  void succeeded(K key) {
+    failures.remove(key);
+  }
+
+  /**
+   * Forgets all failures.
+   */
+  void clear() {
+    failures.clear();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores exports in a directory shared by many JVMs, such as a mounted network filesystem used by every node of a
+ * cluster.  Each export is created by only one JVM at a time, coordinated by a {@linkplain FileChannel#tryLock() file
+ * lock} next to the export, while the others wait and then use the published export.
+ *
+ * <p>The filesystem must support file locks between all JVMs using it.  Locks are released by the operating system
+ * when a JVM exits, so a failed node does not leave the export locked.</p>
+ */
+public class SharedDirectoryExportStore extends DirectoryExportStore {
+
+  /**
+   * The suffix of lock files, which are removed once the export is published.
+   */
+  static final String LOCK_SUFFIX = ".lock";
+
+  /**
+   * The time between attempts to lock an export being created by another JVM.
+   */
+  private static final long LOCK_POLL_MILLIS = 100;
+
+  public SharedDirectoryExportStore(File directory) {
+    super(directory);
+  }
+
+  @Override
+  public boolean create(File file, ExportWriter writer) throws InterruptedException, IOException {
+    if (file.exists()) {
+      return false;
+    }
+    Files.createDirectories(file.getParentFile().toPath());
+    Path lockPath = Paths.get(file.getPath() + LOCK_SUFFIX);
+    try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      while (true) {
+        FileLock lock;
+        try {
+          lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+          // Locked by another thread of this JVM
+          lock = null;
+        }
+        if (lock != null) {
+          try {
+            boolean created = super.create(file, writer);
+            // Removed while still locked, any JVM waiting on the removed file will find the export published
+            Files.deleteIfExists(lockPath);
+            return created;
+          } finally {
+            lock.release();
+          }
+        }
+        // Another JVM is creating the export, wait for it
+        Thread.sleep(LOCK_POLL_MILLIS);
+        if (file.exists()) {
+          return false;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * semanticcms-dia-servlet - Java API for embedding Dia-based diagrams in web pages in a Servlet environment.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of semanticcms-dia-servlet.
+ *
+ * semanticcms-dia-servlet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * semanticcms-dia-servlet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with semanticcms-dia-servlet.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.semanticcms.dia.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Measures the contention of looking up up-to-date exports from many threads, comparing the previous path through a
+ * single global monitor with the current lock-free path.  This is a standalone program, not a unit test:
+ *
+ * <pre>java com.semanticcms.dia.servlet.impl.ExportPathBenchmark [seconds per run]</pre>
+ *
+ * <p>Both paths compute the name of an export within a {@link DirectoryExportStore} and read its modified time.  The
+ * previous path did so while holding the global {@code tempDirLock}, also ensuring the directory exists.  The current
+ * path takes no lock, reading the modified time through a disabled {@link FileMetadataCache} as when
+ * {@link DiaImpl#WATCH_FILES_INIT_PARAM} is not set.</p>
+ */
+public final class ExportPathBenchmark {
+
+  /**
+   * The number of distinct diagrams looked up, spread over the hash subdirectories.
+   */
+  private static final int NUM_HASHES = 4096;
+
+  private static final Object tempDirLock = new Object();
+
+  /** Make no instances. */
+  private ExportPathBenchmark() {
+    throw new AssertionError();
+  }
+
+  @FunctionalInterface
+  private interface Lookup {
+    long lookup(String hash) throws IOException;
+  }
+
+  private static String getName(String hash) {
+    return hash.substring(0, 2) + '/' + hash + "-200x_" + DiaImpl.PNG_EXTENSION;
+  }
+
+  /**
+   * Runs the lookup on the given number of threads for the given time.
+   *
+   * @return  the lookups per second
+   */
+  private static double run(int threads, long millis, String[] hashes, Lookup lookup) throws InterruptedException {
+    LongAdder count = new LongAdder();
+    AtomicBoolean done = new AtomicBoolean();
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * 7919;
+      workers[t] = new Thread(() -> {
+        try {
+          start.await();
+          int i = offset;
+          long local = 0;
+          while (!done.get()) {
+            lookup.lookup(hashes[i++ % hashes.length]);
+            local++;
+          }
+          count.add(local);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      workers[t].start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    TimeUnit.MILLISECONDS.sleep(millis);
+    done.set(true);
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return count.sum() * 1e9 / (System.nanoTime() - startNanos);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    long millis = TimeUnit.SECONDS.toMillis(args.length > 0 ? Integer.parseInt(args[0]) : 2);
+    File directory = Files.createTempDirectory(ExportPathBenchmark.class.getSimpleName()).toFile();
+    try {
+      DirectoryExportStore store = new DirectoryExportStore(directory);
+      FileMetadataCache metadataCache = new FileMetadataCache();
+      // Up-to-date exports, as on a warm server
+      String[] hashes = new String[NUM_HASHES];
+      for (int i = 0; i < NUM_HASHES; i++) {
+        hashes[i] = String.format("%064x", (long) i * 0x9E3779B97F4A7C15L & Long.MAX_VALUE);
+        File file = store.getFile(getName(hashes[i]));
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.createFile(file.toPath());
+      }
+      Lookup previous = hash -> {
+        synchronized (tempDirLock) {
+          File file = store.getFile(getName(hash));
+          Files.createDirectories(file.getParentFile().toPath());
+          return file.lastModified();
+        }
+      };
+      Lookup current = hash -> metadataCache.lastModified(store.getFile(getName(hash)));
+      // Warm-up
+      run(Runtime.getRuntime().availableProcessors(), millis, hashes, previous);
+      run(Runtime.getRuntime().availableProcessors(), millis, hashes, current);
+      System.out.println("threads\tprevious (lookups/s)\tcurrent (lookups/s)\tspeedup");
+      for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+        double previousRate = run(threads, millis, hashes, previous);
+        double currentRate = run(threads, millis, hashes, current);
+        System.out.printf("%d\t%.0f\t%.0f\t%.2fx%n", threads, previousRate, currentRate, currentRate / previousRate);
+      }
+    } finally {
+      try (Stream<Path> paths = Files.walk(directory.toPath())) {
+        paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+    }
+  }
+}